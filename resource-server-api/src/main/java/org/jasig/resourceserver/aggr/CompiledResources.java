@@ -0,0 +1,237 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.aggr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.resourceserver.aggr.om.BasicInclude;
+import org.jasig.resourceserver.aggr.om.Css;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.aggr.om.Js;
+import org.jasig.resourceserver.aggr.om.Parameter;
+import org.jasig.resourceserver.aggr.om.Resources;
+
+/**
+ * Compact binary form of a {@link Resources} read from a skin XML file, written next to aggregated skin XML
+ * files so they can be loaded without parsing XML.
+ * <p>
+ * The descriptor records the size and a SHA-256 hash of the XML file it was compiled from and is only read while
+ * the XML file still matches, a descriptor from a different format version is ignored. The content is compared
+ * instead of the modification time as packaging the files in a WAR and extracting it does not preserve the time
+ * exactly. Boolean attributes are only set when they are true, the same values the XML attributes default to.
+ */
+final class CompiledResources {
+    private static final int MAGIC = 0x52534B4E; // RSKN
+    private static final int VERSION = 2;
+    
+    private static final int HASH_LENGTH = 32;
+    
+    private static final int COMPRESSED = 1;
+    private static final int IMPORT = 1 << 1;
+    private static final int RESOURCE = 1 << 2;
+    
+    private CompiledResources() {
+    }
+    
+    /**
+     * Write the descriptor for Resources read from the XML file, the XML file must already be written
+     */
+    static void write(Resources resources, File resourcesXml, File file) throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            final byte[] xml = Files.readAllBytes(resourcesXml.toPath());
+            out.writeLong(xml.length);
+            out.write(hash(xml));
+            
+            final List<Parameter> parameters = resources.getParameter();
+            out.writeInt(parameters.size());
+            for (final Parameter parameter : parameters) {
+                writeString(out, parameter.getName());
+                writeString(out, parameter.getValue());
+            }
+            
+            final List<Css> cssList = resources.getCss();
+            out.writeInt(cssList.size());
+            for (final Css css : cssList) {
+                writeInclude(out, css);
+                writeString(out, css.getMedia());
+            }
+            
+            final List<Js> jsList = resources.getJs();
+            out.writeInt(jsList.size());
+            for (final Js js : jsList) {
+                writeInclude(out, js);
+            }
+        }
+    }
+    
+    /**
+     * @return The Resources in the descriptor, null if it is from a different format version or the content of the
+     * XML file changed after it was written
+     * @throws IOException If the descriptor could not be read or is not valid
+     */
+    static Resources read(File file, File resourcesXml) throws IOException {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a compiled Resources file: " + file);
+        }
+        if (in.readInt() != VERSION || in.readLong() != resourcesXml.length()) {
+            return null;
+        }
+        final byte[] xmlHash = new byte[HASH_LENGTH];
+        in.readFully(xmlHash);
+        if (!Arrays.equals(xmlHash, hash(Files.readAllBytes(resourcesXml.toPath())))) {
+            return null;
+        }
+        
+        final Resources resources = new Resources();
+        
+        final int parameterCount = in.readInt();
+        final List<Parameter> parameters = resources.getParameter();
+        for (int i = 0; i < parameterCount; i++) {
+            final Parameter parameter = new Parameter();
+            parameter.setName(readString(in));
+            parameter.setValue(readString(in));
+            parameters.add(parameter);
+        }
+        
+        final int cssCount = in.readInt();
+        final List<Css> cssList = resources.getCss();
+        for (int i = 0; i < cssCount; i++) {
+            final Css css = readInclude(in, new Css());
+            css.setMedia(readString(in));
+            cssList.add(css);
+        }
+        
+        final int jsCount = in.readInt();
+        final List<Js> jsList = resources.getJs();
+        for (int i = 0; i < jsCount; i++) {
+            jsList.add(readInclude(in, new Js()));
+        }
+        
+        if (in.available() > 0) {
+            throw new IOException("Unexpected data at the end of compiled Resources file: " + file);
+        }
+        return resources;
+    }
+    
+    private static void writeInclude(DataOutputStream out, BasicInclude include) throws IOException {
+        writeString(out, include.getValue());
+        writeString(out, include.getConditional());
+        final Included included = include.getIncluded();
+        writeString(out, included != null ? included.value() : null);
+        
+        int flags = 0;
+        if (include.isCompressed()) {
+            flags |= COMPRESSED;
+        }
+        if (include.isImport()) {
+            flags |= IMPORT;
+        }
+        if (include.isResource()) {
+            flags |= RESOURCE;
+        }
+        out.writeByte(flags);
+        
+        final List<String> encodings = include.getEncodings();
+        out.writeInt(encodings.size());
+        for (final String encoding : encodings) {
+            writeString(out, encoding);
+        }
+    }
+    
+    private static <T extends BasicInclude> T readInclude(DataInputStream in, T include) throws IOException {
+        include.setValue(readString(in));
+        include.setConditional(readString(in));
+        final String included = readString(in);
+        if (included != null) {
+            try {
+                include.setIncluded(Included.fromValue(included));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Invalid included value in compiled Resources: " + included, e);
+            }
+        }
+        
+        final int flags = in.readByte();
+        if ((flags & COMPRESSED) != 0) {
+            include.setCompressed(true);
+        }
+        if ((flags & IMPORT) != 0) {
+            include.setImport(true);
+        }
+        if ((flags & RESOURCE) != 0) {
+            include.setResource(true);
+        }
+        
+        final int encodingCount = in.readInt();
+        final List<String> encodings = include.getEncodings();
+        for (int i = 0; i < encodingCount; i++) {
+            encodings.add(readString(in));
+        }
+        return include;
+    }
+    
+    private static byte[] hash(byte[] xml) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(xml);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("String length " + length + " is past the end of the compiled Resources");
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
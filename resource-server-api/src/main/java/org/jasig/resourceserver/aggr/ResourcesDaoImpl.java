@@ -19,12 +19,20 @@
 package org.jasig.resourceserver.aggr;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -43,13 +51,29 @@ import org.jasig.resourceserver.aggr.om.ObjectFactory;
 import org.jasig.resourceserver.aggr.om.Resources;
 
 /**
- * Implementation of {@link ResourcesDao} that uses JAXB to read and write Resources objects.
+ * Implementation of {@link ResourcesDao} that reads Resources objects with StAX, or JAXB if the
+ * {@link #setStreamingReader(boolean) streaming reader} is disabled, and writes them with JAXB. A single JAXBContext
+ * is shared by all instances and only created the first time JAXB is used.
+ * <p>
+ * If a compiled descriptor written by {@link #writeCompiledResources(Resources, File, File)} is next to a skin XML
+ * file and the content of the XML file has not changed since it was written the descriptor is read instead of the
+ * XML.
+ * <p>
+ * Thread-safe, import loop detection is tracked per thread and loaded Resources are never modified once they
+ * are cached, imported elements are copied before being added to the importing Resources.
+ * <p>
+ * Loaded Resources are cached, each file is only parsed once no matter how many threads ask for it at the same
+ * time. Cached Resources are reloaded when the XML file or any file it imports is modified, the modification
+ * times are checked at most once per {@link #setCheckInterval(long) check interval}. The least recently used
+ * Resources are discarded once more than {@link #setMaxLoadedResources(int)} are cached. If a map is set with
+ * {@link #setLoadedResources(Map)} it is used to cache the Resources instead.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class ResourcesDaoImpl implements ResourcesDao {
     public static final String DEFAULT_ENCODING = "UTF-8";
+    public static final String COMPILED_RESOURCES_EXTENSION = ".bin";
     
     private static final ThreadLocal<Set<File>> VISITED = new ThreadLocal<Set<File>>() {
         @Override
@@ -58,14 +82,20 @@ public class ResourcesDaoImpl implements ResourcesDao {
         }
     };
     
+    private static volatile JAXBContext jaxbContext;
+    
     private final CssResourceLoadCallback CSS_INSTANCE = new CssResourceLoadCallback();
     private final JsResourceLoadCallback JS_INSTANCE = new JsResourceLoadCallback();
     
     protected final Logger logger;
     
-    private Map<File, Resources> loadedResources = new ConcurrentHashMap<File, Resources>();
+    private final ConcurrentMap<CacheKey, Future<LoadedResources>> loadedResources = new ConcurrentHashMap<CacheKey, Future<LoadedResources>>();
+    private volatile Map<File, Resources> providedResources;
+    private volatile int maxLoadedResources = 1000;
+    private volatile long checkInterval = 5000;
+    private volatile boolean streamingReader = true;
+    private volatile boolean compiledResources = true;
     private String schemaLocation;
-    private final JAXBContext jaxbContext;
     private final String encoding;
     
     public ResourcesDaoImpl() {
@@ -80,26 +110,88 @@ public class ResourcesDaoImpl implements ResourcesDao {
     public ResourcesDaoImpl(Logger logger, String encoding) {
         this.logger = logger != null ? logger : LoggerFactory.getLogger(this.getClass());
         this.encoding = encoding;
-        
-        try {
-            this.jaxbContext = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName());
-        }
-        catch (JAXBException e) {
-            throw new RuntimeException("Failed to configure JAXBContext", e);
+    }
+    
+    /**
+     * @return The shared JAXBContext, created on first use
+     */
+    private static JAXBContext getJaxbContext() {
+        JAXBContext context = jaxbContext;
+        if (context == null) {
+            synchronized (ResourcesDaoImpl.class) {
+                context = jaxbContext;
+                if (context == null) {
+                    try {
+                        context = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName());
+                    }
+                    catch (JAXBException e) {
+                        throw new RuntimeException("Failed to configure JAXBContext", e);
+                    }
+                    jaxbContext = context;
+                }
+            }
         }
+        return context;
     }
     
     /**
-     * Map used to cache loaded resources, must be thread-safe
+     * Map used to cache loaded resources instead of the internal cache, must be thread-safe. Resources already in
+     * the map are used as is and Resources read from disk are added to it. Resources in the map are never reloaded
+     * when their files change and are not limited by {@link #setMaxLoadedResources(int)}, the owner of the map is
+     * responsible for removing them. Filtered Resources are stored under <code>new File(resourcesXml, "__" + scope)</code>.
+     * Set to null to use the internal cache.
      */
     public void setLoadedResources(Map<File, Resources> loadedResources) {
-        this.loadedResources = loadedResources;
+        this.providedResources = loadedResources;
+    }
+    
+    /**
+     * Maximum number of loaded Resources to cache, each skin is cached once as read and once for each scope it
+     * is read with. Defaults to 1000.
+     */
+    public void setMaxLoadedResources(int maxLoadedResources) {
+        if (maxLoadedResources < 1) {
+            throw new IllegalArgumentException("maxLoadedResources must be at least 1: " + maxLoadedResources);
+        }
+        this.maxLoadedResources = maxLoadedResources;
+    }
+    
+    /**
+     * Milliseconds between checks of the modification times of the files cached Resources were read from. 0
+     * checks on every read, a negative value never checks. Defaults to 5000.
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * If skin XML files are read with StAX instead of JAXB, avoids creating the JAXBContext when only reading.
+     * Defaults to true.
+     */
+    public void setStreamingReader(boolean streamingReader) {
+        this.streamingReader = streamingReader;
+    }
+
+    /**
+     * If compiled descriptors next to skin XML files are read instead of the XML when they are current. Defaults
+     * to true.
+     */
+    public void setCompiledResources(boolean compiledResources) {
+        this.compiledResources = compiledResources;
+    }
+
+    /**
+     * Discard all loaded Resources, they are read from disk again the next time they are used. A map set with
+     * {@link #setLoadedResources(Map)} is not modified.
+     */
+    public void clearLoadedResources() {
+        this.loadedResources.clear();
     }
 
     @Override
     public void writeResources(final Resources resources, final File file) {
         try {
-            Marshaller m = this.jaxbContext.createMarshaller();
+            Marshaller m = getJaxbContext().createMarshaller();
             m.setProperty("jaxb.encoding", this.encoding);
             m.setProperty("jaxb.formatted.output", true);
             if (this.schemaLocation != null) {
@@ -111,17 +203,202 @@ public class ResourcesDaoImpl implements ResourcesDao {
         }
     }
 
+    /**
+     * @return The compiled descriptor file for the skin XML file, skin.aggr.xml is compiled to skin.aggr.bin
+     */
+    public File getCompiledResourcesFile(File resourcesXml) {
+        return new File(resourcesXml.getParentFile(), FilenameUtils.getBaseName(resourcesXml.getName()) + COMPILED_RESOURCES_EXTENSION);
+    }
+
+    /**
+     * Write a compiled descriptor of Resources written to a skin XML file. The XML file must already be written,
+     * the descriptor is only read while the XML file is unmodified. Imports should already be resolved, imported
+     * files are still read from XML.
+     * 
+     * @param resources The Resources written to the XML file
+     * @param resourcesXml The skin XML file
+     * @param file The file to write the descriptor to, normally {@link #getCompiledResourcesFile(File)}
+     */
+    public void writeCompiledResources(final Resources resources, final File resourcesXml, final File file) {
+        try {
+            CompiledResources.write(resources, resourcesXml, file);
+        }
+        catch (IOException e) {
+            throw new AggregationException("Failed to write compiled Resources to: " + file, e);
+        }
+    }
+
     @Override
-    public Resources readResources(final File resourcesXml, Included scope) {
-        final File filteredCacheKey = new File(resourcesXml, "__" + scope);
-        Resources filteredResources = this.loadedResources.get(filteredCacheKey);
-        if (filteredResources != null) {
+    public Resources readResources(final File resourcesXml, final Included scope) {
+        final Map<File, Resources> providedResources = this.providedResources;
+        if (providedResources != null) {
+            final File filteredCacheKey = new File(resourcesXml, "__" + scope);
+            Resources filteredResources = providedResources.get(filteredCacheKey);
+            if (filteredResources == null) {
+                filteredResources = filterResources(this.readResources(resourcesXml), scope);
+                providedResources.put(filteredCacheKey, filteredResources);
+            }
             return filteredResources;
         }
         
-        final Resources resources = this.readResources(resourcesXml);
+        return this.getLoadedResources(new CacheKey(resourcesXml, scope), new Callable<LoadedResources>() {
+            @Override
+            public LoadedResources call() {
+                return filterResources(resourcesXml, scope);
+            }
+        }).resources;
+    }
+
+    @Override
+    public Resources readResources(final File resourcesXml) {
+        final Map<File, Resources> providedResources = this.providedResources;
+        if (providedResources != null) {
+            Resources resources = providedResources.get(resourcesXml);
+            if (resources == null) {
+                resources = this.loadResources(resourcesXml).resources;
+                providedResources.put(resourcesXml, resources);
+            }
+            return resources;
+        }
+        
+        return this.getLoadedResources(new CacheKey(resourcesXml, null), new Callable<LoadedResources>() {
+            @Override
+            public LoadedResources call() {
+                return loadResources(resourcesXml);
+            }
+        }).resources;
+    }
+    
+    /**
+     * @return The specified XML file and every XML file it imports, directly or indirectly
+     */
+    public Set<File> getResourcesFiles(final File resourcesXml) {
+        return this.getLoadedResources(new CacheKey(resourcesXml, null), new Callable<LoadedResources>() {
+            @Override
+            public LoadedResources call() {
+                return loadResources(resourcesXml);
+            }
+        }).lastModified.keySet();
+    }
+    
+    /**
+     * Get the cached Resources, loading them if they are not cached or their files changed. Only one thread
+     * loads each key, other threads asking for the same key wait for it.
+     */
+    private LoadedResources getLoadedResources(CacheKey key, Callable<LoadedResources> loader) {
+        //Imports are loaded while holding the importing file's load, waiting for another thread here could deadlock
+        //if the two threads are loading files that import each other
+        final boolean importing = isLoading();
+        final long checkInterval = this.checkInterval;
+        
+        while (true) {
+            Future<LoadedResources> future = this.loadedResources.get(key);
+            if (future == null) {
+                final FutureTask<LoadedResources> loadTask = new FutureTask<LoadedResources>(loader);
+                future = this.loadedResources.putIfAbsent(key, loadTask);
+                if (future == null) {
+                    future = loadTask;
+                    loadTask.run();
+                    this.evictLoadedResources();
+                }
+            }
+            else if (importing && !future.isDone()) {
+                return getResult(key, new FutureTask<LoadedResources>(loader));
+            }
+            
+            final LoadedResources loaded;
+            try {
+                loaded = getResult(key, future);
+            }
+            catch (RuntimeException | Error e) {
+                //Don't cache failures, the next read tries again
+                this.loadedResources.remove(key, future);
+                throw e;
+            }
+            
+            //Imports are always checked, the importing file is being reloaded because something changed
+            if (loaded.isModified(checkInterval, importing)) {
+                this.logger.debug("Reloading modified Resources: " + key);
+                this.loadedResources.remove(key, future);
+                continue;
+            }
+            
+            loaded.lastAccess = System.nanoTime();
+            return loaded;
+        }
+    }
+    
+    private static LoadedResources getResult(CacheKey key, Future<LoadedResources> future) {
+        //Load on this thread if the load has not started yet, a FutureTask only ever runs once
+        if (future instanceof FutureTask && !future.isDone()) {
+            ((FutureTask<LoadedResources>) future).run();
+        }
         
-        filteredResources = new Resources();
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AggregationException("Interrupted while waiting for Resources to load: " + key, e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AggregationException("Failed to load Resources: " + key, cause);
+        }
+    }
+    
+    /**
+     * Discard the least recently used Resources until no more than the maximum are cached
+     */
+    private void evictLoadedResources() {
+        while (this.loadedResources.size() > this.maxLoadedResources) {
+            Map.Entry<CacheKey, Future<LoadedResources>> leastRecentlyUsed = null;
+            long leastRecentAccess = Long.MAX_VALUE;
+            for (final Map.Entry<CacheKey, Future<LoadedResources>> entry : this.loadedResources.entrySet()) {
+                final Future<LoadedResources> future = entry.getValue();
+                if (!future.isDone()) {
+                    continue;
+                }
+                
+                final long lastAccess;
+                try {
+                    lastAccess = future.get().lastAccess;
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    //Failed loads are removed by the thread that ran them
+                    continue;
+                }
+                if (leastRecentlyUsed == null || lastAccess - leastRecentAccess < 0) {
+                    leastRecentlyUsed = entry;
+                    leastRecentAccess = lastAccess;
+                }
+            }
+            
+            if (leastRecentlyUsed == null) {
+                return;
+            }
+            this.loadedResources.remove(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+        }
+    }
+    
+    private LoadedResources filterResources(final File resourcesXml, final Included scope) {
+        final LoadedResources loaded = this.getLoadedResources(new CacheKey(resourcesXml, null), new Callable<LoadedResources>() {
+            @Override
+            public LoadedResources call() {
+                return loadResources(resourcesXml);
+            }
+        });
+        return new LoadedResources(filterResources(loaded.resources, scope), loaded.lastModified);
+    }
+    
+    private static Resources filterResources(final Resources resources, final Included scope) {
+        final Resources filteredResources = new Resources();
 
         //Copy over all parameters
         filteredResources.getParameter().addAll(resources.getParameter());
@@ -144,19 +421,10 @@ public class ResourcesDaoImpl implements ResourcesDao {
             }
         }
         
-        //Cache the filtered resources object
-        this.loadedResources.put(filteredCacheKey, filteredResources);
-        
         return filteredResources;
     }
 
-    @Override
-    public Resources readResources(final File resourcesXml) {
-        Resources resources = this.loadedResources.get(resourcesXml);
-        if (resources != null) {
-            return resources;
-        }
-        
+    private LoadedResources loadResources(final File resourcesXml) {
         final Set<File> visited = VISITED.get();
         try {
             if (!visited.add(resourcesXml)) {
@@ -165,15 +433,19 @@ public class ResourcesDaoImpl implements ResourcesDao {
             
             this.logger.debug("Loading Resources from: " + resourcesXml);
             
-            try {
-                final Unmarshaller u = this.jaxbContext.createUnmarshaller();
-                resources = (Resources) u.unmarshal(resourcesXml);
-            } catch (JAXBException e) {
-                throw new AggregationException("Failed to unmarshal Resources file: " + resourcesXml, e);
-            }
+            //Recorded before reading so a change made while reading is seen by the next check
+            final Map<File, Long> lastModified = new LinkedHashMap<File, Long>();
+            lastModified.put(resourcesXml, resourcesXml.lastModified());
+            
+            final Resources resources = this.parseResources(resourcesXml);
             
             final File resourcesParentDir = resourcesXml.getParentFile();
             
+            //Track the import graph before the imports are replaced
+            final Set<File> importedFiles = new LinkedHashSet<File>();
+            addImportedFiles(resourcesParentDir, resources.getCss(), importedFiles);
+            addImportedFiles(resourcesParentDir, resources.getJs(), importedFiles);
+            
             //Iterate over CSS entries to handle imports
             final List<Css> cssList = resources.getCss();
             this.loadIncludes(resourcesParentDir, cssList, CSS_INSTANCE);
@@ -182,8 +454,22 @@ public class ResourcesDaoImpl implements ResourcesDao {
             final List<Js> JsList = resources.getJs();
             this.loadIncludes(resourcesParentDir, JsList, JS_INSTANCE);
             
-            this.loadedResources.put(resourcesXml, resources);
-            return resources;
+            for (final File importedFile : importedFiles) {
+                final Future<LoadedResources> imported = this.loadedResources.get(new CacheKey(importedFile, null));
+                final LoadedResources importedResources = imported != null && imported.isDone() ? getResult(null, imported) : null;
+                if (importedResources != null) {
+                    for (final Map.Entry<File, Long> entry : importedResources.lastModified.entrySet()) {
+                        if (!lastModified.containsKey(entry.getKey())) {
+                            lastModified.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                else if (!lastModified.containsKey(importedFile)) {
+                    lastModified.put(importedFile, importedFile.lastModified());
+                }
+            }
+            
+            return new LoadedResources(resources, Collections.unmodifiableMap(lastModified));
         }
         finally {
             visited.remove(resourcesXml);
@@ -193,6 +479,52 @@ public class ResourcesDaoImpl implements ResourcesDao {
         }
     }
     
+    private Resources parseResources(final File resourcesXml) {
+        if (this.compiledResources) {
+            final File compiledFile = this.getCompiledResourcesFile(resourcesXml);
+            if (compiledFile.isFile()) {
+                try {
+                    final Resources resources = CompiledResources.read(compiledFile, resourcesXml);
+                    if (resources != null) {
+                        return resources;
+                    }
+                    this.logger.debug("Ignoring out of date compiled Resources: " + compiledFile);
+                }
+                catch (IOException e) {
+                    this.logger.warn("Failed to read compiled Resources file " + compiledFile + ", reading " + resourcesXml + " instead", e);
+                }
+            }
+        }
+        
+        if (this.streamingReader) {
+            return StaxResourcesReader.read(resourcesXml);
+        }
+        
+        try {
+            final Unmarshaller u = getJaxbContext().createUnmarshaller();
+            return (Resources) u.unmarshal(resourcesXml);
+        } catch (JAXBException e) {
+            throw new AggregationException("Failed to unmarshal Resources file: " + resourcesXml, e);
+        }
+    }
+    
+    private static boolean isLoading() {
+        final Set<File> visited = VISITED.get();
+        if (visited.isEmpty()) {
+            VISITED.remove();
+            return false;
+        }
+        return true;
+    }
+    
+    private static void addImportedFiles(File resourcesParentDir, List<? extends BasicInclude> includes, Set<File> importedFiles) {
+        for (final BasicInclude include : includes) {
+            if (include.isImport()) {
+                importedFiles.add(new File(resourcesParentDir, include.getValue()));
+            }
+        }
+    }
+    
     @Override
     public String getAggregatedSkinName(String skinXmlName) {
         final String resourcesXmlBaseName = FilenameUtils.getBaseName(skinXmlName);
@@ -300,4 +632,76 @@ public class ResourcesDaoImpl implements ResourcesDao {
             return importedResources.getJs();
         }
     }
+    
+    /**
+     * A skin file as read, scope is null, or filtered to a scope
+     */
+    private static final class CacheKey {
+        private final File resourcesXml;
+        private final Included scope;
+        
+        CacheKey(File resourcesXml, Included scope) {
+            this.resourcesXml = resourcesXml;
+            this.scope = scope;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.resourcesXml.hashCode() * 31 + (this.scope == null ? 0 : this.scope.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            return this.resourcesXml.equals(other.resourcesXml) && this.scope == other.scope;
+        }
+
+        @Override
+        public String toString() {
+            return this.scope == null ? this.resourcesXml.toString() : this.resourcesXml + " (" + this.scope + ")";
+        }
+    }
+    
+    /**
+     * Cached Resources and the modification times of the files they were read from
+     */
+    private static final class LoadedResources {
+        private final Resources resources;
+        private final Map<File, Long> lastModified;
+        private volatile long nextCheck;
+        private volatile long lastAccess = System.nanoTime();
+        
+        LoadedResources(Resources resources, Map<File, Long> lastModified) {
+            this.resources = resources;
+            this.lastModified = lastModified;
+        }
+        
+        /**
+         * @param force Check even if the check interval has not passed
+         * @return true if any of the files were modified, always false if the check interval is negative
+         */
+        boolean isModified(long checkInterval, boolean force) {
+            if (checkInterval < 0) {
+                return false;
+            }
+            final long now = System.currentTimeMillis();
+            if (!force && now < this.nextCheck) {
+                return false;
+            }
+            
+            for (final Map.Entry<File, Long> entry : this.lastModified.entrySet()) {
+                if (entry.getKey().lastModified() != entry.getValue()) {
+                    return true;
+                }
+            }
+            this.nextCheck = now + checkInterval;
+            return false;
+        }
+    }
 }
@@ -0,0 +1,227 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.aggr;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringUtils;
+import org.jasig.resourceserver.aggr.om.BasicInclude;
+import org.jasig.resourceserver.aggr.om.Css;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.aggr.om.Js;
+import org.jasig.resourceserver.aggr.om.Parameter;
+import org.jasig.resourceserver.aggr.om.Resources;
+
+/**
+ * Reads skin-configuration v1.1, v1.2 and v1.3 documents into {@link Resources} with StAX, avoids creating a JAXBContext
+ * and the overhead of JAXB unmarshalling.
+ * <p>
+ * Mirrors how JAXB unmarshals the documents: unknown elements and attributes are ignored and attribute values
+ * that are not valid are treated as if the attribute was not set. The root element must be a resources element
+ * in the skin namespace.
+ */
+final class StaxResourcesReader {
+    static final String NAMESPACE = "http://www.jasig.org/uportal/web/skin";
+    
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+    
+    private StaxResourcesReader() {
+    }
+    
+    static Resources read(File resourcesXml) {
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(resourcesXml))) {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(resourcesXml.toURI().toString(), in);
+            try {
+                return readResources(reader);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException | XMLStreamException e) {
+            throw new AggregationException("Failed to read Resources file: " + resourcesXml, e);
+        }
+    }
+    
+    private static Resources readResources(XMLStreamReader reader) throws XMLStreamException {
+        while (!reader.isStartElement()) {
+            reader.next();
+        }
+        if (!NAMESPACE.equals(reader.getNamespaceURI()) || !"resources".equals(reader.getLocalName())) {
+            throw new XMLStreamException("Unexpected element " + reader.getName() + ", expected {" + NAMESPACE + "}resources", reader.getLocation());
+        }
+        
+        final Resources resources = new Resources();
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            
+            if (!NAMESPACE.equals(reader.getNamespaceURI())) {
+                skipElement(reader);
+                continue;
+            }
+            
+            switch (reader.getLocalName()) {
+                case "parameter": {
+                    resources.getParameter().add(readParameter(reader));
+                    break;
+                }
+                case "css": {
+                    resources.getCss().add(readInclude(reader, new Css()));
+                    break;
+                }
+                case "js": {
+                    resources.getJs().add(readInclude(reader, new Js()));
+                    break;
+                }
+                default: {
+                    skipElement(reader);
+                }
+            }
+        }
+        
+        return resources;
+    }
+    
+    private static Parameter readParameter(XMLStreamReader reader) throws XMLStreamException {
+        final Parameter parameter = new Parameter();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (isUnqualified(reader, i) && "name".equals(reader.getAttributeLocalName(i))) {
+                parameter.setName(reader.getAttributeValue(i));
+            }
+        }
+        parameter.setValue(reader.getElementText());
+        return parameter;
+    }
+    
+    private static <T extends BasicInclude> T readInclude(XMLStreamReader reader, T include) throws XMLStreamException {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (!isUnqualified(reader, i)) {
+                continue;
+            }
+            
+            final String value = reader.getAttributeValue(i);
+            switch (reader.getAttributeLocalName(i)) {
+                case "compressed": {
+                    include.setCompressed(parseBoolean(value));
+                    break;
+                }
+                case "conditional": {
+                    include.setConditional(value);
+                    break;
+                }
+                case "included": {
+                    include.setIncluded(parseIncluded(value));
+                    break;
+                }
+                case "import": {
+                    include.setImport(parseBoolean(value));
+                    break;
+                }
+                case "resource": {
+                    include.setResource(parseBoolean(value));
+                    break;
+                }
+                case "encodings": {
+                    include.getEncodings().addAll(Arrays.asList(StringUtils.split(value)));
+                    break;
+                }
+                case "media": {
+                    if (include instanceof Css) {
+                        ((Css) include).setMedia(value);
+                    }
+                    break;
+                }
+            }
+        }
+        include.setValue(reader.getElementText());
+        return include;
+    }
+    
+    /**
+     * Skip the current element and all of its content
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+    
+    private static boolean isUnqualified(XMLStreamReader reader, int index) {
+        final String namespace = reader.getAttributeNamespace(index);
+        return namespace == null || namespace.length() == 0;
+    }
+    
+    /**
+     * Parse an xs:boolean, null if the value is not valid
+     */
+    static Boolean parseBoolean(String value) {
+        switch (value.trim()) {
+            case "true":
+            case "1": {
+                return Boolean.TRUE;
+            }
+            case "false":
+            case "0": {
+                return Boolean.FALSE;
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * Parse an included value, null if the value is not valid
+     */
+    static Included parseIncluded(String value) {
+        try {
+            return Included.fromValue(value.trim());
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    private static XMLInputFactory createXmlInputFactory() {
+        final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return xmlInputFactory;
+    }
+}
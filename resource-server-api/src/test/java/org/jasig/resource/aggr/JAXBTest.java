@@ -61,6 +61,14 @@ public class JAXBTest {
     @Before
     public void setup() throws Exception {
         this.resourcesDao = new ResourcesDaoImpl(ENCODING);
+        this.resourcesDao.setStreamingReader(this.isStreamingReader());
+    }
+    
+    /**
+     * @return If the fixtures are read with the StAX reader instead of JAXB
+     */
+    protected boolean isStreamingReader() {
+        return true;
     }
     
     @After
@@ -0,0 +1,259 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.jasig.resourceserver.aggr.AggregationException;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.aggr.om.Css;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.aggr.om.Js;
+import org.jasig.resourceserver.aggr.om.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourcesDaoImplTest {
+    private File testDirectory;
+    private File skinXml;
+    private File importedXml;
+    private ResourcesDaoImpl resourcesDao;
+
+    @Before
+    public void setup() throws Exception {
+        this.testDirectory = Files.createTempDirectory("resources-dao-test").toFile();
+        this.skinXml = new File(this.testDirectory, "skin.xml");
+        this.importedXml = new File(this.testDirectory, "common/common.xml");
+        writeSkin(this.skinXml, "<js>skin.js</js><js import=\"true\">common/common.xml</js>");
+        writeSkin(this.importedXml, "<js>common.js</js>");
+        this.resourcesDao = new ResourcesDaoImpl();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(this.testDirectory);
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        final Resources resources = this.resourcesDao.readResources(this.skinXml);
+        assertEquals(2, resources.getJs().size());
+        assertEquals("common/common.js", resources.getJs().get(1).getValue());
+        assertSame(resources, this.resourcesDao.readResources(this.skinXml));
+        assertSame(this.resourcesDao.readResources(this.skinXml, Included.PLAIN), this.resourcesDao.readResources(this.skinXml, Included.PLAIN));
+        assertEquals(new LinkedHashSet<File>(Arrays.asList(this.skinXml, this.importedXml)), this.resourcesDao.getResourcesFiles(this.skinXml));
+    }
+
+    @Test
+    public void testImportModified() throws Exception {
+        this.resourcesDao.setCheckInterval(0);
+        final Resources resources = this.resourcesDao.readResources(this.skinXml, Included.AGGREGATED);
+        assertEquals(2, resources.getJs().size());
+
+        writeSkin(this.importedXml, "<js>common.js</js><js>more.js</js>");
+        this.importedXml.setLastModified(this.importedXml.lastModified() + 2000);
+
+        final Resources reloaded = this.resourcesDao.readResources(this.skinXml, Included.AGGREGATED);
+        assertNotSame(resources, reloaded);
+        assertEquals(3, reloaded.getJs().size());
+        assertEquals(3, this.resourcesDao.readResources(this.skinXml).getJs().size());
+    }
+
+    @Test
+    public void testNeverChecked() throws Exception {
+        this.resourcesDao.setCheckInterval(-1);
+        final Resources resources = this.resourcesDao.readResources(this.skinXml);
+
+        writeSkin(this.skinXml, "<js>changed.js</js>");
+        this.skinXml.setLastModified(this.skinXml.lastModified() + 2000);
+        assertSame(resources, this.resourcesDao.readResources(this.skinXml));
+
+        this.resourcesDao.clearLoadedResources();
+        assertEquals(1, this.resourcesDao.readResources(this.skinXml).getJs().size());
+    }
+
+    @Test
+    public void testMaxLoadedResources() throws Exception {
+        this.resourcesDao.setMaxLoadedResources(1);
+        final Resources imported = this.resourcesDao.readResources(this.importedXml);
+        assertSame(imported, this.resourcesDao.readResources(this.importedXml));
+
+        this.resourcesDao.readResources(this.skinXml);
+        assertNotSame(imported, this.resourcesDao.readResources(this.importedXml));
+    }
+
+    @Test
+    public void testProvidedLoadedResources() throws Exception {
+        final Map<File, Resources> loadedResources = new ConcurrentHashMap<File, Resources>();
+        final Resources preloaded = new Resources();
+        loadedResources.put(this.importedXml, preloaded);
+        this.resourcesDao.setLoadedResources(loadedResources);
+
+        assertSame(preloaded, this.resourcesDao.readResources(this.importedXml));
+
+        //The skin imports the preloaded Resources and is added to the map
+        final Resources resources = this.resourcesDao.readResources(this.skinXml);
+        assertEquals(1, resources.getJs().size());
+        assertSame(resources, loadedResources.get(this.skinXml));
+
+        final Resources filtered = this.resourcesDao.readResources(this.skinXml, Included.PLAIN);
+        assertSame(filtered, loadedResources.get(new File(this.skinXml, "__" + Included.PLAIN)));
+        assertSame(filtered, this.resourcesDao.readResources(this.skinXml, Included.PLAIN));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Resources>> results = new ArrayList<Future<Resources>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executorService.submit(new Callable<Resources>() {
+                    @Override
+                    public Resources call() throws Exception {
+                        start.await();
+                        return resourcesDao.readResources(skinXml, Included.AGGREGATED);
+                    }
+                }));
+            }
+            start.countDown();
+
+            final Resources resources = results.get(0).get();
+            for (final Future<Resources> result : results) {
+                assertSame(resources, result.get());
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamingReaderMatchesJaxb() throws Exception {
+        writeSkin(this.skinXml,
+                "<!-- comment --><parameter name=\"foo\">bar</parameter>"
+                + "<css media=\"screen\" compressed=\"1\" conditional=\"if IE\" included=\"plain\"><![CDATA[a&b.css]]></css>"
+                + "<unknown><js>unknown.js</js></unknown>"
+                + "<x:js xmlns:x=\"urn:other\">other.js</x:js>"
+                + "<js resource=\" true \" encodings=\"gzip  br\" included=\"sometimes\" unknown=\"x\">a.js</js>"
+                + "<js import=\"false\">b&amp;c.js</js>");
+
+        final Resources streamed = this.resourcesDao.readResources(this.skinXml);
+        final ResourcesDaoImpl jaxbResourcesDao = new ResourcesDaoImpl();
+        jaxbResourcesDao.setStreamingReader(false);
+        assertEquals(jaxbResourcesDao.readResources(this.skinXml), streamed);
+
+        assertEquals("bar", streamed.getParameter().get(0).getValue());
+
+        final Css css = streamed.getCss().get(0);
+        assertEquals("a&b.css", css.getValue());
+        assertEquals("screen", css.getMedia());
+        assertEquals("if IE", css.getConditional());
+        assertEquals(Included.PLAIN, css.getIncluded());
+        assertTrue(css.isCompressed());
+
+        assertEquals(2, streamed.getJs().size());
+        final Js js = streamed.getJs().get(0);
+        assertEquals("a.js", js.getValue());
+        assertTrue(js.isResource());
+        assertEquals(Included.BOTH, js.getIncluded());
+        assertEquals(Arrays.asList("gzip", "br"), js.getEncodings());
+        assertEquals("b&c.js", streamed.getJs().get(1).getValue());
+    }
+
+    @Test
+    public void testStreamingReaderUnexpectedRoot() throws Exception {
+        FileUtils.write(this.skinXml, "<resources><js>a.js</js></resources>", "UTF-8");
+        try {
+            this.resourcesDao.readResources(this.skinXml);
+            fail("Resources without the skin namespace should not be read");
+        }
+        catch (AggregationException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testCompiledResources() throws Exception {
+        final Resources resources = this.resourcesDao.readResources(this.skinXml);
+        final File compiledFile = this.resourcesDao.getCompiledResourcesFile(this.skinXml);
+        assertEquals(new File(this.testDirectory, "skin.bin"), compiledFile);
+
+        //Add an element that is not in the XML to tell which file was read
+        final Js compiledJs = new Js();
+        compiledJs.setValue("compiled.js");
+        compiledJs.setResource(true);
+        compiledJs.getEncodings().add("gzip");
+        resources.getJs().add(compiledJs);
+        this.resourcesDao.writeCompiledResources(resources, this.skinXml, compiledFile);
+
+        final ResourcesDaoImpl compiledResourcesDao = new ResourcesDaoImpl();
+        final Resources compiled = compiledResourcesDao.readResources(this.skinXml);
+        assertEquals(resources, compiled);
+        assertEquals(3, compiledResourcesDao.readResources(this.skinXml, Included.AGGREGATED).getJs().size());
+
+        final ResourcesDaoImpl xmlResourcesDao = new ResourcesDaoImpl();
+        xmlResourcesDao.setCompiledResources(false);
+        assertEquals(2, xmlResourcesDao.readResources(this.skinXml).getJs().size());
+
+        //Only the content of the XML is compared, extracting a WAR does not preserve the modification time
+        this.skinXml.setLastModified(this.skinXml.lastModified() - 1500);
+        assertEquals(3, new ResourcesDaoImpl().readResources(this.skinXml).getJs().size());
+
+        //Out of date descriptors are ignored, even if the size of the XML is the same
+        final long xmlLength = this.skinXml.length();
+        writeSkin(this.skinXml, "<js>skix.js</js><js import=\"true\">common/common.xml</js>");
+        assertEquals(xmlLength, this.skinXml.length());
+        assertEquals("skix.js", new ResourcesDaoImpl().readResources(this.skinXml).getJs().get(0).getValue());
+
+        writeSkin(this.skinXml, "<js>skin.js</js>");
+        this.skinXml.setLastModified(this.skinXml.lastModified() + 2000);
+        assertEquals(1, new ResourcesDaoImpl().readResources(this.skinXml).getJs().size());
+
+        //Invalid descriptors are ignored
+        this.resourcesDao.writeCompiledResources(resources, this.skinXml, compiledFile);
+        FileUtils.writeByteArrayToFile(compiledFile, Arrays.copyOf(FileUtils.readFileToByteArray(compiledFile), 40));
+        assertEquals(1, new ResourcesDaoImpl().readResources(this.skinXml).getJs().size());
+    }
+
+    private static void writeSkin(File file, String includes) throws Exception {
+        FileUtils.write(file, "<resources xmlns=\"http://www.jasig.org/uportal/web/skin\">" + includes + "</resources>", "UTF-8");
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.jasig.resource.aggr.ResourcesAggregatorImpl.AggregatorCallback;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.aggr.om.Js;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Grouping, compressing, trimming, hashing and writing the JavaScript of a skin through
+ * {@link ResourcesAggregatorImpl#aggregateBasicIncludes(List, AggregatorCallback)}. The "none" compressor copies
+ * the resources as is to measure the aggregation pipeline on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AggregatorBenchmark {
+    /**
+     * Number of JavaScript files in the skin
+     */
+    @Param({ "1", "10", "50" })
+    public int fileCount;
+
+    /**
+     * Size of each file in characters
+     */
+    @Param({ "1024", "16384", "131072" })
+    public int fileSize;
+
+    @Param({ "none", "esbuild" })
+    public String compressor;
+
+    private File skinDirectory;
+    private File outputDirectory;
+    private List<Js> js;
+    private ResourcesAggregatorImpl aggregator;
+    private EsbuildServicePool servicePool;
+    private JsCallback callback;
+
+    @Setup
+    public void setup() throws Exception {
+        this.skinDirectory = BenchmarkResources.createTempDirectory("aggregator-benchmark");
+        final File skinXml = BenchmarkResources.createSkin(this.skinDirectory, this.fileCount, this.fileSize);
+        this.outputDirectory = new File(this.skinDirectory, "target");
+        this.outputDirectory.mkdirs();
+
+        this.js = new ResourcesDaoImpl().readResources(skinXml, Included.AGGREGATED).getJs();
+        this.aggregator = new ResourcesAggregatorImpl();
+        this.servicePool = "esbuild".equals(this.compressor) ? new EsbuildServicePool(1) : null;
+        this.callback = new JsCallback(MessageDigest.getInstance("MD5"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.servicePool != null) {
+            this.servicePool.close();
+        }
+        this.aggregator.close();
+        FileUtils.deleteDirectory(this.skinDirectory);
+    }
+
+    @Benchmark
+    public List<Js> aggregateBasicIncludes() throws IOException {
+        return this.aggregator.aggregateBasicIncludes(this.js, this.callback);
+    }
+
+    private final class JsCallback implements AggregatorCallback<Js> {
+        private final MessageDigest digest;
+        private final List<File> sourceDirectories = Collections.singletonList(skinDirectory);
+
+        private JsCallback(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void compress(Reader reader, Writer writer) throws IOException {
+            if (servicePool != null) {
+                servicePool.compressJavaScript(reader, writer);
+            }
+            else {
+                IOUtils.copy(reader, writer);
+            }
+        }
+
+        @Override
+        public Js getAggregateElement(String location, Deque<Js> elements) {
+            final Js aggregate = new Js();
+            aggregate.setValue(location);
+            aggregate.setCompressed(true);
+            return aggregate;
+        }
+
+        @Override
+        public Js aggregate(Deque<Js> list) throws IOException {
+            return aggregator.aggregateList(this.digest, list, this.sourceDirectories, outputDirectory, null, ".aggr.min.js", this);
+        }
+
+        @Override
+        public boolean willAggregate(Js first, Js second) {
+            return aggregator.willAggregateWith(first, second);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Generates the synthetic resources and skins the benchmarks run against
+ */
+final class BenchmarkResources {
+    private static final String JS_BLOCK =
+            "/**\n" +
+            " * Toggles the portlet %1$d\n" +
+            " */\n" +
+            "function togglePortlet%1$d(portletId, options) {\n" +
+            "    var portlet = document.getElementById(portletId);\n" +
+            "    if (portlet === null || options.disabled) {\n" +
+            "        return false;\n" +
+            "    }\n" +
+            "\n" +
+            "    portlet.className = portlet.className.indexOf('collapsed') >= 0 ? 'expanded' : 'collapsed';\n" +
+            "    return true;\n" +
+            "}\n\n";
+    private static final String CSS_BLOCK =
+            "/* portlet %1$d */\n" +
+            ".up-portlet-%1$d .portlet-title {\n" +
+            "    color: #333333;\n" +
+            "    margin: 0px 0px 10px 0px;\n" +
+            "    background-color: #ffffff;\n" +
+            "}\n" +
+            "\n" +
+            ".up-portlet-%1$d .portlet-content a:hover {\n" +
+            "    text-decoration: underline;\n" +
+            "}\n\n";
+
+    private BenchmarkResources() {
+    }
+
+    /**
+     * Unminified JavaScript of roughly the specified number of characters
+     */
+    static String generateJavaScript(int size) {
+        return generate(JS_BLOCK, size);
+    }
+
+    /**
+     * Unminified CSS of roughly the specified number of characters
+     */
+    static String generateCss(int size) {
+        return generate(CSS_BLOCK, size);
+    }
+
+    /**
+     * Create a skin with the specified number of JavaScript and CSS files, every file is included in the skin
+     * xml so they are all aggregated into one JavaScript and one CSS aggregate.
+     * 
+     * @return The skin xml
+     */
+    static File createSkin(File directory, int fileCount, int fileSize) throws IOException {
+        final StringBuilder skinXml = new StringBuilder();
+        skinXml.append("<resources xmlns=\"http://www.jasig.org/uportal/web/skin\">\n");
+        for (int i = 0; i < fileCount; i++) {
+            FileUtils.write(new File(directory, "css/file" + i + ".css"), generateCss(fileSize), StandardCharsets.UTF_8);
+            skinXml.append("    <css>css/file").append(i).append(".css</css>\n");
+        }
+        for (int i = 0; i < fileCount; i++) {
+            FileUtils.write(new File(directory, "js/file" + i + ".js"), generateJavaScript(fileSize), StandardCharsets.UTF_8);
+            skinXml.append("    <js>js/file").append(i).append(".js</js>\n");
+        }
+        skinXml.append("</resources>\n");
+
+        final File skinFile = new File(directory, "skin.xml");
+        FileUtils.write(skinFile, skinXml, StandardCharsets.UTF_8);
+        return skinFile;
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    private static String generate(String block, int size) {
+        final StringBuilder content = new StringBuilder(size + block.length() * 2);
+        for (int i = 0; content.length() < size; i++) {
+            content.append(String.format(block, i));
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.jasig.resourceserver.aggr.AggregationException;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * End to end benchmark that aggregates the real libraries in resource-server-content through
+ * {@link ResourcesAggregatorImpl#aggregate(AggregationRequest)}. A skin xml is generated for each library plus
+ * one for all of them. Minified files are included as compressed unless the unminified file is also there.
+ * <p>
+ * Each mode (serial: one thread and one esbuild process, parallel: one of each per processor) runs once cold,
+ * with a new aggregator, and then warm with the same aggregator, JIT and esbuild processes. The compression cache
+ * is not used so every run compresses everything. Reported per run: wall time, CPU time of the JVM (esbuild
+ * runs in separate processes and is not included), bytes allocated by live JVM threads and the rate, esbuild
+ * processes started and the bytes of output. Results are printed and written as JSON.
+ * <p>
+ * Run from the project root after packaging:
+ * <code>java -cp resource-server-benchmarks/target/benchmarks.jar org.jasig.resource.aggr.ContentAggregationBenchmark
+ * [contentDirectory] [warmRuns] [serial,parallel] [resultFile]</code>
+ * For cold numbers unaffected by a previous mode run one mode per JVM.
+ */
+public class ContentAggregationBenchmark {
+    static final String DEFAULT_CONTENT_DIRECTORY = "resource-server-content/src/main/webapp/rs";
+    static final String DEFAULT_RESULT_FILE = "content-aggregation-result.json";
+
+    private final File contentDirectory;
+    private final File workDirectory;
+    private final List<File> skins;
+
+    public static void main(String[] args) throws Exception {
+        final File contentDirectory = new File(args.length > 0 ? args[0] : DEFAULT_CONTENT_DIRECTORY);
+        final int warmRuns = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final List<String> modes = Arrays.asList((args.length > 2 ? args[2] : "serial,parallel").split(","));
+        final File resultFile = new File(args.length > 3 ? args[3] : DEFAULT_RESULT_FILE);
+        if (!contentDirectory.isDirectory()) {
+            throw new IllegalArgumentException("Content directory does not exist: " + contentDirectory.getAbsolutePath());
+        }
+
+        final File workDirectory = BenchmarkResources.createTempDirectory("content-aggregation-benchmark");
+        try {
+            final ContentAggregationBenchmark benchmark = new ContentAggregationBenchmark(contentDirectory, workDirectory);
+            final List<Result> results = new ArrayList<Result>();
+            for (final String mode : modes) {
+                results.addAll(benchmark.run(mode, warmRuns));
+            }
+
+            System.out.println(String.format(Locale.ROOT, "%-9s %-5s %10s %10s %12s %12s %10s %12s",
+                    "mode", "run", "wall ms", "cpu ms", "alloc MB", "alloc MB/s", "esbuilds", "output bytes"));
+            for (final Result result : results) {
+                System.out.println(result);
+            }
+
+            final StringBuilder json = new StringBuilder("[\n");
+            for (final Result result : results) {
+                json.append(json.length() > 2 ? ",\n" : "").append("  ").append(result.toJson());
+            }
+            json.append("\n]\n");
+            FileUtils.write(resultFile, json, StandardCharsets.UTF_8);
+            System.out.println("Results written to " + resultFile.getAbsolutePath());
+        }
+        finally {
+            FileUtils.deleteDirectory(workDirectory);
+        }
+    }
+
+    ContentAggregationBenchmark(File contentDirectory, File workDirectory) throws IOException {
+        this.contentDirectory = contentDirectory;
+        this.workDirectory = workDirectory;
+        this.skins = createSkins(contentDirectory, new File(workDirectory, "skins"));
+    }
+
+    /**
+     * Run the mode once cold and then warmRuns times warm
+     */
+    List<Result> run(String mode, int warmRuns) throws IOException, AggregationException {
+        final int threads;
+        if ("serial".equals(mode)) {
+            threads = 1;
+        }
+        else if ("parallel".equals(mode)) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        else {
+            throw new IllegalArgumentException("Unknown mode, must be serial or parallel: " + mode);
+        }
+
+        final List<Result> results = new ArrayList<Result>(warmRuns + 1);
+        final ResourcesAggregatorImpl aggregator = new ResourcesAggregatorImpl();
+        try {
+            aggregator.setEsbuildProcesses(threads);
+            aggregator.setAggregationThreads(threads);
+            for (int run = 0; run <= warmRuns; run++) {
+                results.add(this.aggregateAll(aggregator, mode, run == 0 ? "cold" : "warm"));
+            }
+        }
+        finally {
+            aggregator.close();
+        }
+        return results;
+    }
+
+    private Result aggregateAll(ResourcesAggregatorImpl aggregator, String mode, String run) throws IOException, AggregationException {
+        final File outputDirectory = new File(this.workDirectory, "output");
+        FileUtils.deleteDirectory(outputDirectory);
+
+        final OperatingSystemMXBean operatingSystem = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        final long startCpu = operatingSystem.getProcessCpuTime();
+        final long startAllocated = getAllocatedBytes();
+        final long startProcesses = EsbuildCompressor.getProcessesStarted();
+        final long start = System.nanoTime();
+
+        for (final File skin : this.skins) {
+            aggregator.aggregate(new AggregationRequest()
+                .setResourcesXml(skin)
+                .setOutputBaseDirectory(new File(outputDirectory, FilenameUtils.getBaseName(skin.getName())))
+                .addAdditionalSourceDirectory(this.contentDirectory));
+        }
+
+        final long wallNanos = System.nanoTime() - start;
+        return new Result(mode, run, wallNanos,
+                operatingSystem.getProcessCpuTime() - startCpu,
+                getAllocatedBytes() - startAllocated,
+                EsbuildCompressor.getProcessesStarted() - startProcesses,
+                FileUtils.sizeOfDirectory(outputDirectory));
+    }
+
+    /**
+     * Bytes allocated by the live threads, allocations of threads that exit during a run are not counted
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        for (final long threadAllocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (threadAllocated > 0) {
+                allocated += threadAllocated;
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * One skin per library directory and one with every library
+     */
+    static List<File> createSkins(File contentDirectory, File skinDirectory) throws IOException {
+        final List<File> skins = new ArrayList<File>();
+        final StringBuilder allCss = new StringBuilder();
+        final StringBuilder allJs = new StringBuilder();
+
+        final File[] libraries = contentDirectory.listFiles(File::isDirectory);
+        Arrays.sort(libraries);
+        for (final File library : libraries) {
+            final StringBuilder css = new StringBuilder();
+            final StringBuilder js = new StringBuilder();
+            for (final File file : listFiles(library)) {
+                final String path = RelativePath.getRelativePath(contentDirectory, file);
+                final String name = file.getName();
+                if (name.endsWith(".css")) {
+                    appendInclude(css, "css", path);
+                }
+                else if (name.endsWith(".js")) {
+                    appendInclude(js, "js", path);
+                }
+            }
+            if (css.length() > 0 || js.length() > 0) {
+                skins.add(writeSkin(new File(skinDirectory, library.getName() + ".xml"), css, js));
+                allCss.append(css);
+                allJs.append(js);
+            }
+        }
+        skins.add(writeSkin(new File(skinDirectory, "all.xml"), allCss, allJs));
+        return skins;
+    }
+
+    /**
+     * The files to aggregate in a stable order, minified files are dropped if the unminified file exists
+     */
+    private static Collection<File> listFiles(File library) {
+        final TreeMap<String, File> files = new TreeMap<String, File>();
+        for (final File file : FileUtils.listFiles(library, new String[] { "js", "css" }, true)) {
+            files.put(file.getPath(), file);
+        }
+        files.values().removeIf(file -> isMinified(file) && new File(file.getParentFile(), 
+                file.getName().replace(".min.", ".")).exists());
+        return files.values();
+    }
+
+    private static boolean isMinified(File file) {
+        return file.getName().endsWith(".min.js") || file.getName().endsWith(".min.css");
+    }
+
+    private static void appendInclude(StringBuilder includes, String element, String path) {
+        includes.append("    <").append(element);
+        if (path.endsWith(".min." + element)) {
+            includes.append(" compressed=\"true\"");
+        }
+        includes.append('>').append(StringEscapeUtils.escapeXml(path)).append("</").append(element).append(">\n");
+    }
+
+    private static File writeSkin(File skinFile, CharSequence css, CharSequence js) throws IOException {
+        final String skinXml = "<resources xmlns=\"http://www.jasig.org/uportal/web/skin\">\n" + css + js + "</resources>\n";
+        FileUtils.write(skinFile, skinXml, StandardCharsets.UTF_8);
+        return skinFile;
+    }
+
+    static final class Result {
+        final String mode;
+        final String run;
+        final long wallNanos;
+        final long cpuNanos;
+        final long allocatedBytes;
+        final long esbuildProcesses;
+        final long outputBytes;
+
+        Result(String mode, String run, long wallNanos, long cpuNanos, long allocatedBytes, long esbuildProcesses, long outputBytes) {
+            this.mode = mode;
+            this.run = run;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.esbuildProcesses = esbuildProcesses;
+            this.outputBytes = outputBytes;
+        }
+
+        double getAllocationRate() {
+            return this.allocatedBytes / (this.wallNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, 
+                    "{\"mode\": \"%s\", \"run\": \"%s\", \"wallMillis\": %.3f, \"cpuMillis\": %.3f, \"allocatedBytes\": %d, " +
+                    "\"allocationBytesPerSecond\": %.0f, \"esbuildProcesses\": %d, \"outputBytes\": %d}",
+                    this.mode, this.run, this.wallNanos / 1e6, this.cpuNanos / 1e6, this.allocatedBytes,
+                    this.getAllocationRate(), this.esbuildProcesses, this.outputBytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-9s %-5s %10.1f %10.1f %12.1f %12.1f %10d %12d",
+                    this.mode, this.run, this.wallNanos / 1e6, this.cpuNanos / 1e6, this.allocatedBytes / 1e6,
+                    this.getAllocationRate() / 1e6, this.esbuildProcesses, this.outputBytes);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compressing a single resource, with a new esbuild process per call and with a pooled esbuild process
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EsbuildCompressorBenchmark {
+    /**
+     * Size of the resource in characters
+     */
+    @Param({ "1024", "16384", "131072" })
+    public int fileSize;
+
+    private String javaScript;
+    private String css;
+    private EsbuildServicePool servicePool;
+
+    @Setup
+    public void setup() {
+        this.javaScript = BenchmarkResources.generateJavaScript(this.fileSize);
+        this.css = BenchmarkResources.generateCss(this.fileSize);
+        this.servicePool = new EsbuildServicePool(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.servicePool.close();
+    }
+
+    @Benchmark
+    public String compressJavaScript() throws IOException {
+        final StringWriter writer = new StringWriter(this.fileSize);
+        EsbuildCompressor.compressJavaScript(new StringReader(this.javaScript), writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String compressCss() throws IOException {
+        final StringWriter writer = new StringWriter(this.fileSize);
+        EsbuildCompressor.compressCss(new StringReader(this.css), writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String compressJavaScriptPooled() throws IOException {
+        final StringWriter writer = new StringWriter(this.fileSize);
+        this.servicePool.compressJavaScript(new StringReader(this.javaScript), writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public String compressCssPooled() throws IOException {
+        final StringWriter writer = new StringWriter(this.fileSize);
+        this.servicePool.compressCss(new StringReader(this.css), writer);
+        return writer.toString();
+    }
+}
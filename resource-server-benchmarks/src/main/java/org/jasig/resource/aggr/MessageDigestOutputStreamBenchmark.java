@@ -0,0 +1,78 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing an aggregate while it is written, in buffer sized chunks the way the aggregator writes it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MessageDigestOutputStreamBenchmark {
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({ "MD5", "SHA-256" })
+    public String digestAlgorithm;
+
+    /**
+     * Size of the aggregate in bytes
+     */
+    @Param({ "1024", "65536", "1048576" })
+    public int fileSize;
+
+    private MessageDigest digest;
+    private byte[] content;
+
+    @Setup
+    public void setup() throws Exception {
+        this.digest = MessageDigest.getInstance(this.digestAlgorithm);
+        this.content = BenchmarkResources.generateJavaScript(this.fileSize).substring(0, this.fileSize).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        final MessageDigestOutputStream digestStream = new MessageDigestOutputStream(NullOutputStream.INSTANCE, this.digest);
+        for (int off = 0; off < this.content.length; off += CHUNK_SIZE) {
+            digestStream.write(this.content, off, Math.min(CHUNK_SIZE, this.content.length - off));
+        }
+        digestStream.close();
+        return this.digest.digest();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving the path of an aggregate relative to the output directory, done once per aggregate
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RelativePathBenchmark {
+    /**
+     * Number of directories between the output directory and the aggregate
+     */
+    @Param({ "0", "3", "10" })
+    public int depth;
+
+    private File outputDirectory;
+    private File aggregate;
+
+    @Setup
+    public void setup() throws IOException {
+        this.outputDirectory = BenchmarkResources.createTempDirectory("relative-path-benchmark");
+        File directory = this.outputDirectory;
+        for (int i = 0; i < this.depth; i++) {
+            directory = new File(directory, "dir" + i);
+        }
+        directory.mkdirs();
+        this.aggregate = new File(directory, "abcdefghijklmnopqrstuv.aggr.min.js");
+        this.aggregate.createNewFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.outputDirectory);
+    }
+
+    @Benchmark
+    public String getRelativePath() throws IOException {
+        return RelativePath.getRelativePath(this.outputDirectory, this.aggregate);
+    }
+}
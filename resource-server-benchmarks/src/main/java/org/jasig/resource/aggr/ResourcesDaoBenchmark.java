@@ -0,0 +1,91 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.aggr.om.Included;
+import org.jasig.resourceserver.aggr.om.Resources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a skin xml, cold parses the file every time and warm is served from the loaded resources
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ResourcesDaoBenchmark {
+    /**
+     * Number of JavaScript and of CSS files in the skin
+     */
+    @Param({ "10", "100" })
+    public int fileCount;
+
+    /**
+     * Read with StAX, or with JAXB if false
+     */
+    @Param({ "true", "false" })
+    public boolean streamingReader;
+
+    private File skinDirectory;
+    private File skinXml;
+    private ResourcesDaoImpl resourcesDao;
+
+    @Setup
+    public void setup() throws IOException {
+        this.skinDirectory = BenchmarkResources.createTempDirectory("resources-dao-benchmark");
+        this.skinXml = BenchmarkResources.createSkin(this.skinDirectory, this.fileCount, 16);
+        this.resourcesDao = new ResourcesDaoImpl();
+        this.resourcesDao.setStreamingReader(this.streamingReader);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.skinDirectory);
+    }
+
+    @Benchmark
+    public Resources readResourcesCold() {
+        this.resourcesDao.clearLoadedResources();
+        return this.resourcesDao.readResources(this.skinXml, Included.AGGREGATED);
+    }
+
+    @Benchmark
+    public Resources readResourcesWarm() {
+        return this.resourcesDao.readResources(this.skinXml, Included.AGGREGATED);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.Tag;
+
+import org.apache.commons.io.FileUtils;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderImpl;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderUtils;
+import org.jasig.resourceserver.utils.taglib.AggregatedResourcesTag;
+import org.jasig.resourceserver.utils.taglib.ResourceIncludeTag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockPageContext;
+import org.springframework.mock.web.MockServletContext;
+
+/**
+ * The JSP tags rendering a skin, every execution looks up the {@link ResourcesElementsProvider} registered in the
+ * ServletContext and writes the cached snippet. All threads share one ServletContext and provider, each nested
+ * class runs the same benchmarks with a different number of threads so the results show how the throughput
+ * scales. lookupSynchronized is the lookup as it was before it became lock free, locking the ServletContext on
+ * every call, for comparison.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class ResourcesTagBenchmark {
+    @Threads(1)
+    public static class OneThread extends ResourcesTagBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends ResourcesTagBenchmark {
+    }
+
+    @Threads(Threads.MAX)
+    public static class MaxThreads extends ResourcesTagBenchmark {
+    }
+
+    /**
+     * ServletContext with a skin of 10 JavaScript and 10 CSS files and its registered provider
+     */
+    @State(Scope.Benchmark)
+    public static class Webapp {
+        private File skinDirectory;
+        private MockServletContext servletContext;
+
+        @Setup
+        public void setup() throws Exception {
+            this.skinDirectory = BenchmarkResources.createTempDirectory("resources-tag-benchmark");
+            final File skinXml = BenchmarkResources.createSkin(this.skinDirectory, 10, 16);
+
+            //The snippets are generated from the aggregated skin xml, the plain one has the same structure
+            final String aggregatedSkinXml = new ResourcesDaoImpl().getAggregatedSkinName(skinXml.getName());
+            FileUtils.copyFile(skinXml, new File(this.skinDirectory, aggregatedSkinXml));
+
+            this.servletContext = new MockServletContext();
+            final ResourcesElementsProviderImpl provider = new ResourcesElementsProviderImpl();
+            provider.setServletContext(this.servletContext);
+            provider.setResourceLoader(new DefaultResourceLoader() {
+                @Override
+                protected Resource getResourceByPath(String path) {
+                    return new FileSystemResource(new File(skinDirectory, path));
+                }
+            });
+            provider.afterPropertiesSet();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(this.skinDirectory);
+        }
+    }
+
+    /**
+     * Request and tags of a single thread, tag handlers are reused by the container but never concurrently
+     */
+    @State(Scope.Thread)
+    public static class Page {
+        private MockHttpServletRequest request;
+        private AggregatedResourcesTag aggregatedResourcesTag;
+        private ResourceIncludeTag resourceIncludeTag;
+
+        @Setup
+        public void setup(Webapp webapp) {
+            this.request = new MockHttpServletRequest(webapp.servletContext);
+            this.request.setContextPath("/uPortal");
+
+            this.aggregatedResourcesTag = new AggregatedResourcesTag();
+            this.aggregatedResourcesTag.setPath("skin.xml");
+
+            this.resourceIncludeTag = new ResourceIncludeTag();
+            this.resourceIncludeTag.setValue("js/file0.js");
+        }
+
+        MockHttpServletResponse render(Webapp webapp, Tag tag) throws JspException {
+            final MockHttpServletResponse response = new MockHttpServletResponse();
+            tag.setPageContext(new MockPageContext(webapp.servletContext, this.request, response));
+            tag.doStartTag();
+            tag.doEndTag();
+            return response;
+        }
+    }
+
+    @Benchmark
+    public MockHttpServletResponse aggregatedResourcesTag(Webapp webapp, Page page) throws JspException {
+        return page.render(webapp, page.aggregatedResourcesTag);
+    }
+
+    @Benchmark
+    public MockHttpServletResponse resourceIncludeTag(Webapp webapp, Page page) throws JspException {
+        return page.render(webapp, page.resourceIncludeTag);
+    }
+
+    @Benchmark
+    public ResourcesElementsProvider lookup(Webapp webapp) {
+        return ResourcesElementsProviderUtils.getOrCreateResourcesElementsProvider(webapp.servletContext);
+    }
+
+    @Benchmark
+    public ResourcesElementsProvider lookupSynchronized(Webapp webapp) {
+        synchronized (webapp.servletContext) {
+            return ResourcesElementsProviderUtils.getResourcesElementsProvider(webapp.servletContext);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link TrimmingWriter} and {@link TrimmingOutputStream} on the writes from TrimmingWriterTest and on
+ * a bundle sized input written in buffer sized chunks the way the aggregator writes it. The whitespace run
+ * benchmark covers runs longer than the pending whitespace buffer of {@link TrimmingWriter}, which has to grow
+ * and shrink back for each of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TrimmingBenchmark {
+    private static final String[] TEST_WRITES = { " start ", "  ", " mid ", " ", "-", " ", " dle ", "  ", " end " };
+    private static final int CHUNK_SIZE = 8192;
+    private static final int WHITESPACE_RUN = 1000;
+
+    /**
+     * Size of the bundle in characters
+     */
+    @Param({ "1024", "65536", "1048576" })
+    public int bundleSize;
+
+    private char[][] testCharWrites;
+    private byte[][] testByteWrites;
+    private char[] bundleChars;
+    private byte[] bundleBytes;
+    private char[] whitespaceRunChars;
+
+    @Setup
+    public void setup() {
+        this.testCharWrites = new char[TEST_WRITES.length][];
+        this.testByteWrites = new byte[TEST_WRITES.length][];
+        for (int i = 0; i < TEST_WRITES.length; i++) {
+            this.testCharWrites[i] = TEST_WRITES[i].toCharArray();
+            this.testByteWrites[i] = TEST_WRITES[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        //Indented script lines with blank lines between functions, roughly what an unminified file looks like
+        final StringBuilder bundle = new StringBuilder(this.bundleSize + 64);
+        bundle.append("\n\n");
+        for (int line = 0; bundle.length() < this.bundleSize; line++) {
+            if (line % 10 == 0) {
+                bundle.append("\n");
+            }
+            bundle.append("    var value").append(line).append(" = compute(value, \"text\");   \n");
+        }
+        bundle.setLength(this.bundleSize);
+        this.bundleChars = bundle.toString().toCharArray();
+        this.bundleBytes = bundle.toString().getBytes(StandardCharsets.UTF_8);
+
+        //Content separated by long runs of blank lines and padding, written one character at a time
+        final StringBuilder runs = new StringBuilder(this.bundleSize + WHITESPACE_RUN);
+        while (runs.length() < this.bundleSize) {
+            runs.append("var value = 1;");
+            for (int i = 0; i < WHITESPACE_RUN; i++) {
+                runs.append(i % 80 == 0 ? '\n' : ' ');
+            }
+        }
+        runs.setLength(this.bundleSize);
+        this.whitespaceRunChars = runs.toString().toCharArray();
+    }
+
+    @Benchmark
+    public int writerTestStrings() throws IOException {
+        final TrimmingWriter trimmingWriter = new TrimmingWriter(NullWriter.INSTANCE);
+        for (final String write : TEST_WRITES) {
+            trimmingWriter.write(write);
+        }
+        trimmingWriter.close();
+        return trimmingWriter.getCharCount();
+    }
+
+    @Benchmark
+    public int writerTestChars() throws IOException {
+        final TrimmingWriter trimmingWriter = new TrimmingWriter(NullWriter.INSTANCE);
+        for (final char[] write : this.testCharWrites) {
+            trimmingWriter.write(write);
+        }
+        trimmingWriter.close();
+        return trimmingWriter.getCharCount();
+    }
+
+    @Benchmark
+    public int streamTestBytes() throws IOException {
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(NullOutputStream.INSTANCE, StandardCharsets.UTF_8);
+        for (final byte[] write : this.testByteWrites) {
+            trimmingStream.write(write);
+        }
+        trimmingStream.close();
+        return trimmingStream.getCharCount();
+    }
+
+    @Benchmark
+    public int writerBundle() throws IOException {
+        final TrimmingWriter trimmingWriter = new TrimmingWriter(NullWriter.INSTANCE);
+        for (int off = 0; off < this.bundleChars.length; off += CHUNK_SIZE) {
+            trimmingWriter.write(this.bundleChars, off, Math.min(CHUNK_SIZE, this.bundleChars.length - off));
+        }
+        trimmingWriter.close();
+        return trimmingWriter.getCharCount();
+    }
+
+    @Benchmark
+    public int streamBundle() throws IOException {
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(NullOutputStream.INSTANCE, StandardCharsets.UTF_8);
+        for (int off = 0; off < this.bundleBytes.length; off += CHUNK_SIZE) {
+            trimmingStream.write(this.bundleBytes, off, Math.min(CHUNK_SIZE, this.bundleBytes.length - off));
+        }
+        trimmingStream.close();
+        return trimmingStream.getCharCount();
+    }
+
+    @Benchmark
+    public int writerWhitespaceRuns() throws IOException {
+        final TrimmingWriter trimmingWriter = new TrimmingWriter(NullWriter.INSTANCE);
+        for (final char c : this.whitespaceRunChars) {
+            trimmingWriter.write(c);
+        }
+        trimmingWriter.close();
+        return trimmingWriter.getCharCount();
+    }
+}
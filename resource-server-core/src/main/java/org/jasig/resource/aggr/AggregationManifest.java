@@ -0,0 +1,349 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jasig.resourceserver.aggr.om.BasicInclude;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the inputs of every aggregate generated for a skin so that the next aggregation of the skin can
+ * reuse aggregates whose inputs have not changed. Stored as a tab separated text file next to the
+ * aggregated skin xml:
+ * <pre>
+ * settings  &lt;aggregator settings&gt;
+ * file      &lt;size&gt;  &lt;last modified&gt;  &lt;sha-256&gt;  &lt;path&gt;
+ * bundle    &lt;fingerprint&gt;  &lt;aggregate path&gt;
+ * input     &lt;sha-256&gt;      &lt;resolved source file&gt;
+ * </pre>
+ * The fingerprint of a group covers the grouping, the element attributes, the resolved source files and
+ * their content. An aggregator settings change discards all previous entries.
+ * <p>
+ * The file entries record the size and last modified time of every file the aggregation depended on, the
+ * skin xml and its imports, the source files, source file locations that did not exist (size -1) and the
+ * aggregated skin xml along with a hash of their content. If none of them changed and all aggregates still exist
+ * the skin is up to date. Size and last modified time alone are not trusted, a checkout or copy can preserve
+ * both, so the content of each file is hashed once its metadata matches.
+ */
+class AggregationManifest {
+    private static final Logger logger = LoggerFactory.getLogger(AggregationManifest.class);
+
+    private static final String SETTINGS = "settings";
+    private static final String FILE = "file";
+    private static final String BUNDLE = "bundle";
+    private static final String INPUT = "input";
+    private static final String MISSING = "-";
+
+    private final File manifestFile;
+    private final String settings;
+    private final Map<String, String> previousAggregates = new HashMap<String, String>();
+    private final Map<String, String> previousFiles = new LinkedHashMap<String, String>();
+    private final Map<String, String> previousHashes = new HashMap<String, String>();
+    private final Map<String, String> files = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+    private final Map<Deque<?>, Bundle> bundles = Collections.synchronizedMap(new IdentityHashMap<Deque<?>, Bundle>());
+    private final Map<Bundle, String> aggregates = Collections.synchronizedMap(new LinkedHashMap<Bundle, String>());
+
+    private static class Bundle {
+        private final String fingerprint;
+        private final List<File> files;
+        private final List<String> hashes;
+
+        private Bundle(String fingerprint, List<File> files, List<String> hashes) {
+            this.fingerprint = fingerprint;
+            this.files = files;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * @param manifestFile File the manifest is read from and written to
+     * @param settings Aggregator settings that affect the content of generated aggregates
+     */
+    AggregationManifest(File manifestFile, String settings) {
+        this.manifestFile = manifestFile;
+        this.settings = settings.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    /**
+     * Load the aggregates recorded by the previous aggregation, a missing, unreadable or out of date
+     * manifest is ignored.
+     * 
+     * @return true if the manifest was loaded
+     */
+    boolean load() {
+        if (!this.manifestFile.isFile()) {
+            return false;
+        }
+
+        try (final BufferedReader reader = Files.newBufferedReader(this.manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            final String settingsLine = reader.readLine();
+            if (settingsLine == null || !settingsLine.equals(SETTINGS + "\t" + this.settings)) {
+                logger.debug("Aggregation settings changed, ignoring {}", this.manifestFile);
+                return false;
+            }
+
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                final String[] fields = line.split("\t");
+                if (fields.length == 3 && BUNDLE.equals(fields[0])) {
+                    this.previousAggregates.put(fields[1], fields[2]);
+                }
+                else if (fields.length == 5 && FILE.equals(fields[0])) {
+                    this.previousFiles.put(fields[4], fields[1] + "\t" + fields[2]);
+                    this.previousHashes.put(fields[4], fields[3]);
+                }
+            }
+            return true;
+        }
+        catch (IOException e) {
+            logger.warn("Failed to read aggregation manifest " + this.manifestFile + ", aggregating all resources", e);
+            this.previousAggregates.clear();
+            this.previousFiles.clear();
+            this.previousHashes.clear();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the loaded manifest has a record of every file the previous aggregation depended on, none
+     *         of those files changed and all of the aggregates still exist
+     */
+    boolean isUpToDate(File outputRoot) {
+        if (this.previousFiles.isEmpty()) {
+            return false;
+        }
+
+        for (final Map.Entry<String, String> fileEntry : this.previousFiles.entrySet()) {
+            final String path = fileEntry.getKey();
+            if (!fileEntry.getValue().equals(stat(new File(path)))) {
+                logger.debug("{} changed since the previous aggregation", path);
+                return false;
+            }
+        }
+
+        for (final String aggregate : this.previousAggregates.values()) {
+            if (!new File(outputRoot, aggregate).isFile()) {
+                logger.debug("Aggregate {} no longer exists", aggregate);
+                return false;
+            }
+        }
+
+        //Metadata can be preserved by a checkout or copy, confirm the content is unchanged as well
+        for (final Map.Entry<String, String> hashEntry : this.previousHashes.entrySet()) {
+            final String path = hashEntry.getKey();
+            try {
+                if (!hashEntry.getValue().equals(hash(new File(path)))) {
+                    logger.debug("{} changed since the previous aggregation", path);
+                    return false;
+                }
+            }
+            catch (IOException e) {
+                logger.debug("Failed to read " + path + ", treating it as changed", e);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Every file the previous aggregation depended on, empty if no manifest was loaded
+     */
+    Set<File> getPreviousFiles() {
+        final Set<File> previousFiles = new LinkedHashSet<File>();
+        for (final String path : this.previousFiles.keySet()) {
+            previousFiles.add(new File(path));
+        }
+        return previousFiles;
+    }
+
+    /**
+     * Record the current size and last modified time of a file the aggregation depends on, the file does not
+     * need to exist.
+     */
+    void addFile(File file) {
+        this.files.put(file.getAbsolutePath(), stat(file));
+    }
+
+    /**
+     * Record a file using already known metadata
+     */
+    void addFile(File file, long size, long lastModified) {
+        this.files.put(file.getAbsolutePath(), size + "\t" + lastModified);
+    }
+
+    /**
+     * Fingerprint a group of elements to be aggregated into a single file.
+     *
+     * @param files The resolved source file of each element, in order
+     */
+    void addGroup(Deque<? extends BasicInclude> group, String extension, List<File> files) throws IOException {
+        final MessageDigest digest = DigestUtils.getSha256Digest();
+        update(digest, extension);
+
+        final List<String> hashes = new ArrayList<String>(files.size());
+        final Iterator<File> fileItr = files.iterator();
+        for (final BasicInclude element : group) {
+            final File file = fileItr.next();
+            final String hash;
+            try (final InputStream in = Files.newInputStream(file.toPath())) {
+                hash = DigestUtils.sha256Hex(in);
+            }
+            hashes.add(hash);
+
+            update(digest, element.getValue());
+            update(digest, element.getConditional());
+            update(digest, String.valueOf(element.isCompressed()));
+            update(digest, file.getAbsolutePath());
+            update(digest, hash);
+        }
+
+        this.bundles.put(group, new Bundle(Hex.encodeHexString(digest.digest()), files, hashes));
+    }
+
+    /**
+     * @return The aggregate path recorded for the group by the previous aggregation if its inputs are unchanged
+     *         and the aggregate still exists in the output directory, null otherwise.
+     */
+    String getPreviousAggregate(Deque<?> group, File outputRoot) {
+        final Bundle bundle = this.bundles.get(group);
+        if (bundle == null) {
+            return null;
+        }
+
+        final String aggregate = this.previousAggregates.get(bundle.fingerprint);
+        if (aggregate == null || !new File(outputRoot, aggregate).isFile()) {
+            return null;
+        }
+        return aggregate;
+    }
+
+    /**
+     * Record the aggregate generated, or reused, for the group
+     */
+    void putAggregate(Deque<?> group, String aggregate) {
+        final Bundle bundle = this.bundles.get(group);
+        if (bundle != null) {
+            this.aggregates.put(bundle, aggregate);
+        }
+    }
+
+    /**
+     * Replace the manifest file with the aggregates recorded by {@link #putAggregate(Deque, String)}
+     */
+    void write() throws IOException {
+        final Path manifestPath = this.manifestFile.toPath();
+        final Path tempFile = Files.createTempFile(manifestPath.getParent(), this.manifestFile.getName(), ".tmp");
+        try {
+            //Source files were already hashed when their group was fingerprinted
+            final Map<String, String> knownHashes = new HashMap<String, String>();
+            synchronized (this.bundles) {
+                for (final Bundle bundle : this.bundles.values()) {
+                    for (int i = 0; i < bundle.files.size(); i++) {
+                        knownHashes.put(bundle.files.get(i).getAbsolutePath(), bundle.hashes.get(i));
+                    }
+                }
+            }
+
+            try (final Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write(SETTINGS + "\t" + this.settings + "\n");
+                synchronized (this.files) {
+                    for (final Map.Entry<String, String> fileEntry : this.files.entrySet()) {
+                        final String path = fileEntry.getKey();
+                        String hash = knownHashes.get(path);
+                        if (hash == null) {
+                            hash = hash(new File(path));
+                        }
+                        writer.write(FILE + "\t" + fileEntry.getValue() + "\t" + hash + "\t" + path + "\n");
+                    }
+                }
+                synchronized (this.aggregates) {
+                    for (final Map.Entry<Bundle, String> aggregateEntry : this.aggregates.entrySet()) {
+                        final Bundle bundle = aggregateEntry.getKey();
+                        writer.write(BUNDLE + "\t" + bundle.fingerprint + "\t" + aggregateEntry.getValue() + "\n");
+                        for (int i = 0; i < bundle.files.size(); i++) {
+                            writer.write(INPUT + "\t" + bundle.hashes.get(i) + "\t" + bundle.files.get(i).getAbsolutePath() + "\n");
+                        }
+                    }
+                }
+            }
+
+            try {
+                Files.move(tempFile, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static String stat(File file) {
+        final long lastModified = file.lastModified();
+        if (lastModified == 0 && !file.exists()) {
+            return "-1\t0";
+        }
+        return file.length() + "\t" + lastModified;
+    }
+
+    /**
+     * @return SHA-256 of the file content, {@link #MISSING} if the file does not exist
+     */
+    private static String hash(File file) throws IOException {
+        if (!file.isFile()) {
+            return MISSING;
+        }
+        try (final InputStream in = Files.newInputStream(file.toPath())) {
+            return DigestUtils.sha256Hex(in);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed cache of compressor output. Entries are keyed by a hash of the uncompressed content and an
+ * identifier of the compressor that includes its version and flags, so the cache can safely be shared between
+ * skins and builds.
+ * <p>
+ * There are two tiers, an in-memory LRU map and an optional directory on disk. Both are bounded by size, the
+ * least recently used entries are evicted first. The disk tier may be shared by concurrent builds.
+ */
+public class CompressionCache {
+    private static final Logger logger = LoggerFactory.getLogger(CompressionCache.class);
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final String ENTRY_SUFFIX = ".min";
+
+    /**
+     * Something that compresses content, the compressor id passed along with it must change whenever the
+     * output for the same input could change.
+     */
+    public interface Compressor {
+        public void compress(Reader reader, Writer writer) throws IOException;
+    }
+
+    private final LinkedHashMap<String, String> memoryCache = new LinkedHashMap<String, String>(16, 0.75f, true);
+    private final long maxMemorySize;
+    private long memorySize = 0;
+
+    private final File cacheDirectory;
+    private final long maxDiskSize;
+    private final AtomicLong diskSize = new AtomicLong(-1);
+
+    /**
+     * @param maxMemorySize Maximum number of characters to keep in memory, 0 disables the memory tier
+     * @param cacheDirectory Directory to store cache entries in, null disables the disk tier
+     * @param maxDiskSize Maximum number of bytes to keep in the cache directory
+     */
+    public CompressionCache(long maxMemorySize, File cacheDirectory, long maxDiskSize) {
+        this.maxMemorySize = maxMemorySize;
+        this.cacheDirectory = cacheDirectory;
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    /**
+     * Write the compressed form of the reader's content to the writer, using the cached result if there is one.
+     * Output that is identical to the input is not cached, compressors fall back to the input on failure and
+     * the failure may not happen next time.
+     *
+     * @param compressorId Identifies the compressor, its version and its settings
+     */
+    public void compress(Reader reader, Writer writer, String compressorId, Compressor compressor) throws IOException {
+        final String input = IOUtils.toString(reader);
+        final String key = this.getKey(compressorId, input);
+
+        String output = this.getFromMemory(key);
+        if (output == null) {
+            output = this.getFromDisk(key);
+            if (output != null) {
+                this.putInMemory(key, output);
+            }
+        }
+
+        if (output == null) {
+            final StringWriter compressed = new StringWriter(input.length());
+            compressor.compress(new StringReader(input), compressed);
+            output = compressed.toString();
+
+            if (!output.equals(input)) {
+                this.putInMemory(key, output);
+                this.putOnDisk(key, output);
+            }
+        }
+        else {
+            logger.trace("Using cached {} output for {}", compressorId, key);
+        }
+
+        writer.write(output);
+    }
+
+    protected String getKey(String compressorId, String input) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to create MessageDigest for algorithm '" + HASH_ALGORITHM + "'", e);
+        }
+
+        digest.update(compressorId.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(input.getBytes(StandardCharsets.UTF_8));
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private synchronized String getFromMemory(String key) {
+        return this.memoryCache.get(key);
+    }
+
+    private synchronized void putInMemory(String key, String output) {
+        if (output.length() > this.maxMemorySize) {
+            return;
+        }
+
+        final String previous = this.memoryCache.put(key, output);
+        if (previous != null) {
+            this.memorySize -= previous.length();
+        }
+        this.memorySize += output.length();
+
+        for (final Iterator<String> valueItr = this.memoryCache.values().iterator(); this.memorySize > this.maxMemorySize && valueItr.hasNext();) {
+            this.memorySize -= valueItr.next().length();
+            valueItr.remove();
+        }
+    }
+
+    private String getFromDisk(String key) {
+        if (this.cacheDirectory == null) {
+            return null;
+        }
+
+        final File entry = this.getEntryFile(key);
+        try {
+            final String output = FileUtils.readFileToString(entry, StandardCharsets.UTF_8);
+            //Track use for LRU eviction
+            entry.setLastModified(System.currentTimeMillis());
+            return output;
+        }
+        catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException e) {
+            logger.warn("Failed to read compression cache entry " + entry + ", ignoring it", e);
+            return null;
+        }
+    }
+
+    private void putOnDisk(String key, String output) {
+        if (this.cacheDirectory == null) {
+            return;
+        }
+
+        final File entry = this.getEntryFile(key);
+        try {
+            final byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > this.maxDiskSize) {
+                return;
+            }
+
+            //Write to a temp file and move it into place so concurrent builds never see partial entries
+            final Path entryDir = entry.getParentFile().toPath();
+            Files.createDirectories(entryDir);
+            final Path tempFile = Files.createTempFile(entryDir, key, ".tmp");
+            try {
+                Files.write(tempFile, bytes);
+                try {
+                    Files.move(tempFile, entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            this.initDiskSize();
+            if (this.diskSize.addAndGet(bytes.length) > this.maxDiskSize) {
+                this.evictFromDisk();
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Failed to write compression cache entry " + entry + ", ignoring it", e);
+        }
+    }
+
+    private void initDiskSize() {
+        if (this.diskSize.get() < 0) {
+            long size = 0;
+            for (final File entry : this.listEntries()) {
+                size += entry.length();
+            }
+            this.diskSize.compareAndSet(-1, size);
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache directory is under 90% of its maximum size
+     */
+    private synchronized void evictFromDisk() {
+        final List<File> entries = new ArrayList<File>(this.listEntries());
+        long size = 0;
+        for (final File entry : entries) {
+            size += entry.length();
+        }
+
+        final long targetSize = this.maxDiskSize / 10 * 9;
+        if (size > targetSize) {
+            entries.sort(Comparator.comparingLong(File::lastModified));
+            for (final Iterator<File> entryItr = entries.iterator(); size > targetSize && entryItr.hasNext();) {
+                final File entry = entryItr.next();
+                final long length = entry.length();
+                if (entry.delete()) {
+                    size -= length;
+                }
+            }
+            logger.debug("Evicted compression cache entries from {}, {} bytes remain", this.cacheDirectory, size);
+        }
+
+        this.diskSize.set(size);
+    }
+
+    private Collection<File> listEntries() {
+        if (!this.cacheDirectory.isDirectory()) {
+            return new ArrayList<File>();
+        }
+        return FileUtils.listFiles(this.cacheDirectory, new String[] { ENTRY_SUFFIX.substring(1) }, true);
+    }
+
+    private File getEntryFile(String key) {
+        //Fan out into sub directories to keep directory sizes reasonable
+        return new File(new File(this.cacheDirectory, key.substring(0, 2)), key + ENTRY_SUFFIX);
+    }
+
+    @Override
+    public String toString() {
+        final Map<String, Object> settings = new LinkedHashMap<String, Object>();
+        settings.put("maxMemorySize", this.maxMemorySize);
+        settings.put("cacheDirectory", this.cacheDirectory);
+        settings.put("maxDiskSize", this.maxDiskSize);
+        return "CompressionCache" + settings;
+    }
+}
@@ -24,7 +24,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.EnumSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -37,33 +40,150 @@ import org.slf4j.LoggerFactory;
  * Compressor that uses esbuild for minifying JavaScript and CSS files.
  * Extracts the native esbuild binary from the esbuild-java-bundle-original
  * jar at runtime — no Node.js or npx required.
+ * <p>
+ * The static methods start one esbuild process per call, use {@link EsbuildServicePool}
+ * when compressing many resources.
  */
 public class EsbuildCompressor {
     private static final Logger logger = LoggerFactory.getLogger(EsbuildCompressor.class);
 
-    private static final String ESBUILD_VERSION = "0.23.0";
-    private static final int TIMEOUT_SECONDS = 30;
+    static final String ESBUILD_VERSION = "0.23.0";
+    static final int TIMEOUT_SECONDS = 30;
+
+    static final String[] JS_MINIFY_FLAGS = { "--minify-syntax", "--minify-whitespace" };
+    static final String[] CSS_MINIFY_FLAGS = { "--minify" };
+
+    /**
+     * Identify the compressor and its settings for {@link CompressionCache}, the pooled and one-shot modes
+     * produce the same output so they share ids.
+     */
+    static final String JS_COMPRESSOR_ID = "esbuild-" + ESBUILD_VERSION + " js " + String.join(" ", JS_MINIFY_FLAGS);
+    static final String CSS_COMPRESSOR_ID = "esbuild-" + ESBUILD_VERSION + " css " + String.join(" ", CSS_MINIFY_FLAGS);
+
+    /**
+     * System property, if set to true esbuild reads its input from and writes its output to temporary files
+     * instead of stdin/stdout.
+     */
+    public static final String TEMP_FILES_PROPERTY = EsbuildCompressor.class.getName() + ".tempFiles";
+
+    /**
+     * Kills hung esbuild processes
+     */
+    private static final ScheduledThreadPoolExecutor WATCHDOG;
+    static {
+        WATCHDOG = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread t = new Thread(r, "esbuild-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
 
     private static volatile Path cachedBinary = null;
 
+    private static final AtomicLong processesStarted = new AtomicLong();
+
     /**
      * Compress JavaScript using esbuild.
      * Identifier minification is intentionally disabled to avoid breaking
      * property access patterns (e.g. layout.navigation.tabs.externalId).
      */
     public static void compressJavaScript(Reader reader, Writer writer) throws IOException {
-        compressWithEsbuild(reader, writer, "js", "--minify-syntax", "--minify-whitespace");
+        compressWithEsbuild(reader, writer, "js", JS_MINIFY_FLAGS);
     }
 
     /**
      * Compress CSS using esbuild.
      */
     public static void compressCss(Reader reader, Writer writer) throws IOException {
-        compressWithEsbuild(reader, writer, "css", "--minify");
+        compressWithEsbuild(reader, writer, "css", CSS_MINIFY_FLAGS);
     }
 
     private static void compressWithEsbuild(Reader reader, Writer writer, String type, String... minifyFlags)
             throws IOException {
+        if (Boolean.getBoolean(TEMP_FILES_PROPERTY)) {
+            compressWithEsbuildFiles(reader, writer, type, minifyFlags);
+        }
+        else {
+            compressWithEsbuildStreams(reader, writer, type, minifyFlags);
+        }
+    }
+
+    /**
+     * Pipes the input to esbuild's stdin and decodes its stdout directly into the writer. esbuild only
+     * writes to stdout once the whole input compressed successfully so on failure nothing has been written
+     * and the original input can still be used.
+     */
+    private static void compressWithEsbuildStreams(Reader reader, Writer writer, String type, String... minifyFlags)
+            throws IOException {
+        final String input = IOUtils.toString(reader);
+
+        final Path binary = getOrExtractBinary();
+        final String[] command = buildStreamingCommand(binary, type, minifyFlags);
+
+        final Process process = startProcess(new ProcessBuilder(command));
+        final Timeout timeout = scheduleTimeout(process);
+        final StringBuilder errorOutput = new StringBuilder();
+        final Thread drainer = new Thread(() -> {
+            try { errorOutput.append(IOUtils.toString(process.getErrorStream(), StandardCharsets.UTF_8)); }
+            catch (IOException ignored) {}
+        });
+        drainer.start();
+
+        long written = 0;
+        final int exitValue;
+        final boolean timedOut;
+        try {
+            //esbuild reads all of stdin before it produces any output so writing it all up front cannot deadlock
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write(input.getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                //esbuild exited early, the exit code check below reports why
+                logger.debug("Failed to write input to esbuild", e);
+            }
+
+            try (Reader stdout = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+                written = IOUtils.copyLarge(stdout, writer);
+            }
+
+            exitValue = process.waitFor();
+            //stderr is closed once esbuild exited, wait for all of it before reading errorOutput
+            drainer.join();
+        }
+        catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("esbuild process interrupted", e);
+        }
+        catch (IOException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        finally {
+            timedOut = timeout.cancel();
+        }
+
+        //A process destroyed by the watchdog never exits with 0, even if the watchdog fired as it finished
+        if (exitValue == 0) {
+            return;
+        }
+        if (written > 0) {
+            throw new IOException((timedOut ? "esbuild timed out" : "esbuild failed (exit " + exitValue + ")") + 
+                    " after writing " + written + " characters of output: " + errorOutput);
+        }
+        if (timedOut) {
+            logger.warn("esbuild timed out, falling back to uncompressed output");
+        }
+        else {
+            logger.warn("esbuild failed (exit {}), falling back to uncompressed output: {}",
+                    exitValue, errorOutput);
+        }
+        writer.write(input);
+    }
+
+    private static void compressWithEsbuildFiles(Reader reader, Writer writer, String type, String... minifyFlags)
+            throws IOException {
         final Path inputFile = Files.createTempFile("esbuild-input", "." + type);
         final Path outputFile = Files.createTempFile("esbuild-output", "." + type);
 
@@ -77,7 +197,7 @@ public class EsbuildCompressor {
 
             boolean succeeded = false;
             try {
-                final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                final Process process = startProcess(new ProcessBuilder(command).redirectErrorStream(true));
                 final StringBuilder output = new StringBuilder();
                 final Thread drainer = new Thread(() -> {
                     try { output.append(IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8)); }
@@ -85,9 +205,12 @@ public class EsbuildCompressor {
                 });
                 drainer.start();
                 final boolean finished = process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS);
-                drainer.join(TIMEOUT_SECONDS * 1000);
                 if (!finished) {
                     process.destroyForcibly();
+                }
+                //The output is closed once esbuild exited, wait for all of it before reading it
+                drainer.join();
+                if (!finished) {
                     logger.warn("esbuild timed out, falling back to uncompressed output");
                 } else if (process.exitValue() != 0) {
                     logger.warn("esbuild failed (exit {}), falling back to uncompressed output: {}",
@@ -109,6 +232,14 @@ public class EsbuildCompressor {
         }
     }
 
+    private static String[] buildStreamingCommand(Path binary, String type, String[] minifyFlags) {
+        final String[] cmd = new String[minifyFlags.length + 2];
+        cmd[0] = binary.toString();
+        cmd[1] = "--loader=" + type;
+        System.arraycopy(minifyFlags, 0, cmd, 2, minifyFlags.length);
+        return cmd;
+    }
+
     private static String[] buildCommand(Path binary, Path input, Path output, String[] minifyFlags) {
         final String[] cmd = new String[minifyFlags.length + 3];
         cmd[0] = binary.toString();
@@ -118,6 +249,62 @@ public class EsbuildCompressor {
         return cmd;
     }
 
+    /**
+     * Start an esbuild process, every esbuild process is started through here so they can be counted
+     */
+    static Process startProcess(ProcessBuilder processBuilder) throws IOException {
+        final Process process = processBuilder.start();
+        processesStarted.incrementAndGet();
+        return process;
+    }
+
+    /**
+     * Number of esbuild processes started, both one-shot and pooled
+     */
+    static long getProcessesStarted() {
+        return processesStarted.get();
+    }
+
+    /**
+     * Forcibly destroys the process if it is still running after {@link #TIMEOUT_SECONDS}. The returned timeout
+     * must be cancelled once the process is done.
+     */
+    static Timeout scheduleTimeout(Process process) {
+        return scheduleTimeout(process, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    static Timeout scheduleTimeout(Process process, long delay, TimeUnit unit) {
+        return new Timeout(process, delay, unit);
+    }
+
+    /**
+     * Watchdog of a single process, only reports that it timed out if the process was still running when the
+     * watchdog fired. Whether it completed successfully has to be checked with its exit value.
+     */
+    static final class Timeout {
+        private final ScheduledFuture<?> future;
+        private volatile boolean expired;
+
+        private Timeout(Process process, long delay, TimeUnit unit) {
+            this.future = WATCHDOG.schedule(() -> {
+                if (process.isAlive()) {
+                    this.expired = true;
+                    process.destroyForcibly();
+                }
+            }, delay, unit);
+        }
+
+        /**
+         * Stop watching the process
+         *
+         * @return true if the process was still running when the timeout expired and was destroyed
+         */
+        boolean cancel() {
+            this.future.cancel(false);
+            return this.expired;
+        }
+    }
+
     /**
      * Returns the path to the esbuild binary, extracting it from the bundled
      * jar on first call and caching it for subsequent calls.
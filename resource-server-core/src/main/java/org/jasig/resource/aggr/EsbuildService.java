@@ -0,0 +1,332 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single long-lived esbuild process driven through esbuild's stdin/stdout service protocol, the same
+ * protocol the esbuild JavaScript API uses. Each packet is a little-endian uint32 length followed by a
+ * uint32 id (low bit set on responses) and a tagged value.
+ * <p>
+ * Instances are not thread-safe, only one transform may be in flight at a time. Use
+ * {@link EsbuildServicePool} to share processes between threads.
+ */
+class EsbuildService implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(EsbuildService.class);
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_INTEGER = 2;
+    private static final int TYPE_STRING = 3;
+    private static final int TYPE_BYTES = 4;
+    private static final int TYPE_ARRAY = 5;
+    private static final int TYPE_MAP = 6;
+
+    private final Process process;
+    private final InputStream in;
+    private final OutputStream out;
+    private int nextRequestId = 0;
+    private boolean broken = false;
+
+    private EsbuildService(Process process) {
+        this.process = process;
+        this.in = new BufferedInputStream(process.getInputStream());
+        this.out = new BufferedOutputStream(process.getOutputStream());
+    }
+
+    /**
+     * Start a new esbuild service process and verify the version handshake.
+     */
+    static EsbuildService start() throws IOException {
+        final Path binary = EsbuildCompressor.getOrExtractBinary();
+        final Process process = EsbuildCompressor.startProcess(
+                new ProcessBuilder(binary.toString(), "--service=" + EsbuildCompressor.ESBUILD_VERSION)
+                .redirectError(ProcessBuilder.Redirect.DISCARD));
+
+        final EsbuildService service = new EsbuildService(process);
+        try {
+            //The first packet is the raw version string of the binary
+            final String version = new String(service.readPacket(), StandardCharsets.UTF_8);
+            if (!EsbuildCompressor.ESBUILD_VERSION.equals(version)) {
+                throw new IOException("esbuild service version " + version + " does not match expected version " + EsbuildCompressor.ESBUILD_VERSION);
+            }
+        }
+        catch (IOException e) {
+            service.close();
+            throw e;
+        }
+
+        logger.debug("Started esbuild service process");
+        return service;
+    }
+
+    /**
+     * @return false if the process has exited or a protocol error left it in an unknown state
+     */
+    boolean isUsable() {
+        return !this.broken && this.process.isAlive();
+    }
+
+    /**
+     * Transform the input with the specified esbuild flags.
+     *
+     * @return The transformed code, null if esbuild reported errors for the input
+     * @throws IOException If communicating with the process fails, the service is unusable after this
+     */
+    byte[] transform(byte[] input, List<String> flags) throws IOException {
+        final Map<String, Object> request = new LinkedHashMap<String, Object>();
+        request.put("command", "transform");
+        request.put("flags", flags);
+        request.put("inputFS", Boolean.FALSE);
+        request.put("input", input);
+
+        final EsbuildCompressor.Timeout timeout = EsbuildCompressor.scheduleTimeout(this.process);
+        final Map<String, Object> response;
+        try {
+            response = this.sendRequest(request);
+        }
+        catch (IOException | RuntimeException e) {
+            this.broken = true;
+            if (timeout.cancel()) {
+                throw new IOException("esbuild service timed out after " + EsbuildCompressor.TIMEOUT_SECONDS + " seconds", e);
+            }
+            throw e;
+        }
+        timeout.cancel();
+
+        final Object error = response.get("error");
+        if (error != null) {
+            logger.warn("esbuild service rejected transform: {}", error);
+            return null;
+        }
+
+        final Object errors = response.get("errors");
+        if (errors instanceof List && !((List<?>) errors).isEmpty()) {
+            logger.warn("esbuild failed, falling back to uncompressed output: {}", errors);
+            return null;
+        }
+
+        final Object code = response.get("code");
+        if (code instanceof byte[]) {
+            return (byte[]) code;
+        }
+        if (code instanceof String) {
+            return ((String) code).getBytes(StandardCharsets.UTF_8);
+        }
+        throw new IOException("esbuild service response did not contain any code: " + response.keySet());
+    }
+
+    @Override
+    public void close() {
+        this.broken = true;
+        IOUtils.closeQuietly(this.out);
+        IOUtils.closeQuietly(this.in);
+        try {
+            //Closing stdin tells the service to exit, give it a moment before forcing it
+            if (!this.process.waitFor(1, TimeUnit.SECONDS)) {
+                this.process.destroyForcibly();
+            }
+        }
+        catch (InterruptedException e) {
+            this.process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> sendRequest(Map<String, Object> request) throws IOException {
+        final int id = this.nextRequestId++;
+        this.writePacket(id << 1, request);
+
+        while (true) {
+            final ByteBuffer packet = ByteBuffer.wrap(this.readPacket()).order(ByteOrder.LITTLE_ENDIAN);
+            final int packetId = packet.getInt();
+            final Object value = decodeValue(packet);
+
+            if ((packetId & 1) == 0) {
+                //Requests from esbuild (ping and friends) just need an acknowledgement
+                this.writePacket(packetId | 1, Collections.<String, Object>emptyMap());
+            }
+            else if ((packetId >>> 1) == id) {
+                if (!(value instanceof Map)) {
+                    throw new IOException("Unexpected esbuild service response: " + value);
+                }
+                return (Map<String, Object>) value;
+            }
+            else {
+                throw new IOException("Unexpected esbuild service response id " + (packetId >>> 1) + ", expected " + id);
+            }
+        }
+    }
+
+    private void writePacket(int id, Object value) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeUInt32(body, id);
+        encodeValue(body, value);
+
+        final ByteArrayOutputStream length = new ByteArrayOutputStream(4);
+        writeUInt32(length, body.size());
+        length.writeTo(this.out);
+        body.writeTo(this.out);
+        this.out.flush();
+    }
+
+    private byte[] readPacket() throws IOException {
+        final byte[] lengthBytes = new byte[4];
+        readFully(lengthBytes);
+        final int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        if (length < 0) {
+            throw new IOException("Invalid esbuild service packet length: " + length);
+        }
+
+        final byte[] packet = new byte[length];
+        readFully(packet);
+        return packet;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        final int read = IOUtils.read(this.in, buffer);
+        if (read != buffer.length) {
+            throw new EOFException("esbuild service process closed its output, exit code: " + (this.process.isAlive() ? "running" : this.process.exitValue()));
+        }
+    }
+
+    private static void encodeValue(ByteArrayOutputStream buffer, Object value) throws IOException {
+        if (value == null) {
+            buffer.write(TYPE_NULL);
+        }
+        else if (value instanceof Boolean) {
+            buffer.write(TYPE_BOOLEAN);
+            buffer.write((Boolean) value ? 1 : 0);
+        }
+        else if (value instanceof Integer) {
+            buffer.write(TYPE_INTEGER);
+            writeUInt32(buffer, (Integer) value);
+        }
+        else if (value instanceof String) {
+            buffer.write(TYPE_STRING);
+            writeBytes(buffer, ((String) value).getBytes(StandardCharsets.UTF_8));
+        }
+        else if (value instanceof byte[]) {
+            buffer.write(TYPE_BYTES);
+            writeBytes(buffer, (byte[]) value);
+        }
+        else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            buffer.write(TYPE_ARRAY);
+            writeUInt32(buffer, list.size());
+            for (final Object item : list) {
+                encodeValue(buffer, item);
+            }
+        }
+        else if (value instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            buffer.write(TYPE_MAP);
+            writeUInt32(buffer, map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeBytes(buffer, entry.getKey().toString().getBytes(StandardCharsets.UTF_8));
+                encodeValue(buffer, entry.getValue());
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported esbuild service value type: " + value.getClass());
+        }
+    }
+
+    private static Object decodeValue(ByteBuffer buffer) throws IOException {
+        final int type = buffer.get();
+        switch (type) {
+            case TYPE_NULL: {
+                return null;
+            }
+            case TYPE_BOOLEAN: {
+                return buffer.get() != 0;
+            }
+            case TYPE_INTEGER: {
+                return buffer.getInt();
+            }
+            case TYPE_STRING: {
+                return new String(readBytes(buffer), StandardCharsets.UTF_8);
+            }
+            case TYPE_BYTES: {
+                return readBytes(buffer);
+            }
+            case TYPE_ARRAY: {
+                final int count = buffer.getInt();
+                final List<Object> list = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(decodeValue(buffer));
+                }
+                return list;
+            }
+            case TYPE_MAP: {
+                final int count = buffer.getInt();
+                final Map<String, Object> map = new LinkedHashMap<String, Object>();
+                for (int i = 0; i < count; i++) {
+                    final String key = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                    map.put(key, decodeValue(buffer));
+                }
+                return map;
+            }
+            default: {
+                throw new IOException("Invalid esbuild service value type: " + type);
+            }
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream buffer, byte[] bytes) {
+        writeUInt32(buffer, bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeUInt32(ByteArrayOutputStream buffer, int value) {
+        buffer.write(value);
+        buffer.write(value >>> 8);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 24);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a bounded set of esbuild service processes alive so that many resources can be compressed without
+ * paying the process startup cost for each one. Processes are started lazily, at most maxProcesses run at once,
+ * and a process that crashes or times out is discarded and replaced on the next request.
+ * <p>
+ * Produces the same output as the one-shot methods on {@link EsbuildCompressor}, including falling back to the
+ * uncompressed input when esbuild cannot compress it.
+ */
+public class EsbuildServicePool implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(EsbuildServicePool.class);
+
+    private static final List<String> JS_FLAGS = transformFlags("js", EsbuildCompressor.JS_MINIFY_FLAGS);
+    private static final List<String> CSS_FLAGS = transformFlags("css", EsbuildCompressor.CSS_MINIFY_FLAGS);
+
+    private final BlockingQueue<EsbuildService> idleServices = new LinkedBlockingQueue<EsbuildService>();
+    private final Semaphore permits;
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxProcesses The maximum number of esbuild processes to run at once
+     */
+    public EsbuildServicePool(int maxProcesses) {
+        Validate.isTrue(maxProcesses > 0, "maxProcesses must be greater than 0");
+        this.permits = new Semaphore(maxProcesses, true);
+    }
+
+    /**
+     * @see EsbuildCompressor#compressJavaScript(Reader, Writer)
+     */
+    public void compressJavaScript(Reader reader, Writer writer) throws IOException {
+        this.compress(reader, writer, JS_FLAGS);
+    }
+
+    /**
+     * @see EsbuildCompressor#compressCss(Reader, Writer)
+     */
+    public void compressCss(Reader reader, Writer writer) throws IOException {
+        this.compress(reader, writer, CSS_FLAGS);
+    }
+
+    /**
+     * Stops all idle esbuild processes, processes in use are stopped as soon as their current request completes.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        for (EsbuildService service = this.idleServices.poll(); service != null; service = this.idleServices.poll()) {
+            service.close();
+        }
+    }
+
+    private void compress(Reader reader, Writer writer, List<String> flags) throws IOException {
+        final byte[] input = IOUtils.toByteArray(reader, StandardCharsets.UTF_8);
+        final byte[] output = this.transform(input, flags);
+        writer.write(new String(output != null ? output : input, StandardCharsets.UTF_8));
+    }
+
+    private byte[] transform(byte[] input, List<String> flags) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("EsbuildServicePool has been closed");
+        }
+
+        try {
+            this.permits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an esbuild process", e);
+        }
+
+        try {
+            //One retry on a fresh process covers a crashed or timed out process
+            IOException lastException = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                final EsbuildService service = this.borrowService();
+                try {
+                    final byte[] result = service.transform(input, flags);
+                    this.returnService(service);
+                    return result;
+                }
+                catch (IOException e) {
+                    service.close();
+                    lastException = e;
+                    logger.debug("esbuild service process failed, discarding it", e);
+                }
+            }
+
+            logger.warn("esbuild service failed, falling back to uncompressed output: {}", lastException.getMessage());
+            return null;
+        }
+        finally {
+            this.permits.release();
+        }
+    }
+
+    private EsbuildService borrowService() throws IOException {
+        for (EsbuildService service = this.idleServices.poll(); service != null; service = this.idleServices.poll()) {
+            if (service.isUsable()) {
+                return service;
+            }
+            service.close();
+        }
+
+        return EsbuildService.start();
+    }
+
+    private void returnService(EsbuildService service) {
+        if (this.closed || !service.isUsable()) {
+            service.close();
+        }
+        else {
+            this.idleServices.add(service);
+            if (this.closed) {
+                //Lost a race with close(), make sure nothing is left running
+                this.close();
+            }
+        }
+    }
+
+    private static List<String> transformFlags(String loader, String[] minifyFlags) {
+        final List<String> flags = new ArrayList<String>(minifyFlags.length + 2);
+        flags.add("--loader=" + loader);
+        flags.add("--log-level=silent");
+        flags.addAll(Arrays.asList(minifyFlags));
+        return Collections.unmodifiableList(flags);
+    }
+}
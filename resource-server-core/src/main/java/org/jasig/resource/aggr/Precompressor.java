@@ -0,0 +1,222 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a pre-compressed copy of an aggregate next to it so the copy can be served as is instead of compressing
+ * the aggregate on every request. The copy is named after the aggregate with the extension of the encoding
+ * appended, since aggregate names are content hashes the copy never needs to be regenerated.
+ */
+public abstract class Precompressor {
+    private static final Logger logger = LoggerFactory.getLogger(Precompressor.class);
+
+    private final String encoding;
+    private final String extension;
+    private final int level;
+
+    protected Precompressor(String encoding, String extension, int level) {
+        this.encoding = encoding;
+        this.extension = extension;
+        this.level = level;
+    }
+
+    /**
+     * gzip using {@link GZIPOutputStream}
+     * 
+     * @param level 1 (fastest) to 9 (smallest)
+     */
+    public static Precompressor gzip(int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("gzip level must be between 1 and 9: " + level);
+        }
+        return new GzipPrecompressor(level);
+    }
+
+    /**
+     * Brotli using the brotli command line tool, there is no Java encoder on the classpath. If the tool cannot
+     * be run {@link #isAvailable()} returns false.
+     * 
+     * @param level 0 (fastest) to 11 (smallest)
+     * @param executable Name or path of the brotli executable
+     */
+    public static Precompressor brotli(int level, String executable) {
+        if (level < 0 || level > 11) {
+            throw new IllegalArgumentException("brotli level must be between 0 and 11: " + level);
+        }
+        return new BrotliPrecompressor(level, executable);
+    }
+
+    /**
+     * The HTTP Content-Encoding of the pre-compressed copies
+     */
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * Extension appended to the aggregate's file name for the pre-compressed copy
+     */
+    public String getExtension() {
+        return this.extension;
+    }
+
+    public int getLevel() {
+        return this.level;
+    }
+
+    /**
+     * @return false if the encoder cannot be used in this environment
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * The pre-compressed copy of the aggregate
+     */
+    public File getCompressedFile(File aggregateFile) {
+        return new File(aggregateFile.getPath() + this.extension);
+    }
+
+    /**
+     * Write the pre-compressed copy of the aggregate, replacing an existing copy in one step.
+     * 
+     * @return true if the copy was written, false if it is not smaller than the aggregate and was not kept
+     */
+    public boolean compress(File aggregateFile) throws IOException {
+        final File compressedFile = this.getCompressedFile(aggregateFile);
+        final Path tempFile = Files.createTempFile(aggregateFile.getParentFile().toPath(), aggregateFile.getName(), this.extension + ".tmp");
+        try {
+            this.compress(aggregateFile, tempFile.toFile());
+            if (Files.size(tempFile) >= aggregateFile.length()) {
+                FileUtils.deleteQuietly(compressedFile);
+                return false;
+            }
+            ResourcesAggregatorImpl.moveAggregate(tempFile.toFile(), compressedFile);
+            return true;
+        }
+        finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Compress the source file into the target file, the target file exists and is empty.
+     */
+    protected abstract void compress(File source, File target) throws IOException;
+
+    @Override
+    public String toString() {
+        return this.encoding + "-" + this.level;
+    }
+
+    private static final class GzipPrecompressor extends Precompressor {
+        private GzipPrecompressor(int level) {
+            super("gzip", ".gz", level);
+        }
+
+        @Override
+        protected void compress(File source, File target) throws IOException {
+            final int level = this.getLevel();
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(target.toPath()))) {
+                {
+                    def.setLevel(level);
+                }
+            }) {
+                Files.copy(source.toPath(), out);
+            }
+        }
+    }
+
+    private static final class BrotliPrecompressor extends Precompressor {
+        private final String executable;
+        private volatile Boolean available;
+
+        private BrotliPrecompressor(int level, String executable) {
+            super("br", ".br", level);
+            this.executable = executable;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            Boolean available = this.available;
+            if (available == null) {
+                try {
+                    available = this.run(this.executable, "--version") == 0;
+                }
+                catch (IOException e) {
+                    logger.debug("Failed to run " + this.executable, e);
+                    available = false;
+                }
+                if (!available) {
+                    logger.warn("{} could not be run, brotli compressed copies of aggregates will not be written", this.executable);
+                }
+                this.available = available;
+            }
+            return available;
+        }
+
+        @Override
+        protected void compress(File source, File target) throws IOException {
+            final int exitValue = this.run(this.executable, "--force", "--quality=" + this.getLevel(), 
+                    "--output=" + target.getAbsolutePath(), source.getAbsolutePath());
+            if (exitValue != 0) {
+                throw new IOException(this.executable + " failed (exit " + exitValue + ") compressing: " + source);
+            }
+        }
+
+        private int run(String... command) throws IOException {
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final EsbuildCompressor.Timeout timeout = EsbuildCompressor.scheduleTimeout(process);
+            try {
+                final String output = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8);
+                final int exitValue = process.waitFor();
+                if (exitValue != 0 && timeout.cancel()) {
+                    throw new IOException(this.executable + " timed out");
+                }
+                if (exitValue != 0) {
+                    logger.debug("{} exited with {}: {}", this.executable, exitValue, output);
+                }
+                return exitValue;
+            }
+            catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException(this.executable + " interrupted", e);
+            }
+            finally {
+                timeout.cancel();
+            }
+        }
+    }
+}
@@ -22,14 +22,28 @@
 package org.jasig.resource.aggr;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
@@ -41,7 +55,6 @@ import org.apache.commons.lang.builder.EqualsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.jasig.resourceserver.aggr.AggregationException;
-import org.jasig.resourceserver.aggr.ResourcesDao;
 import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
 import org.jasig.resourceserver.aggr.om.BasicInclude;
 import org.jasig.resourceserver.aggr.om.Css;
@@ -58,22 +71,35 @@ import org.jasig.resourceserver.aggr.om.Resources;
 
 /**
  * {@link ResourcesAggregator} implementation.
+ * <p>
+ * Once configured a single instance may be used to aggregate multiple skins concurrently, all per-skin state
+ * is local to each {@link #aggregate(AggregationRequest)} call.
  * 
  * @author Nicholas Blair, npblair@wisc.edu
  *
  */
-public class ResourcesAggregatorImpl implements ResourcesAggregator {
+public class ResourcesAggregatorImpl implements ResourcesAggregator, Closeable {
 	protected final Logger logger;
 	
 	private final static String CSS = ".aggr.min.css";
 	private final static String JS = ".aggr.min.js";
+	private final static String MANIFEST = ".manifest";
+	private final static int COPY_BUFFER_SIZE = 8192;
 	
 	// Removed ErrorReporter - no longer needed with esbuild
 	// private final ErrorReporter errorReporter;
-	private final ResourcesDao resourcesDao;
+	private final ResourcesDaoImpl resourcesDao;
     private final String encoding;
 
 	private String digestAlgorithm = "MD5";
+	private EsbuildServicePool esbuildServicePool;
+	private CompressionCache compressionCache;
+	private boolean incremental = false;
+	private boolean indexSourceDirectories = true;
+	private List<Precompressor> precompressors = Collections.emptyList();
+	private boolean compiledResources = true;
+	private ExecutorService executorService;
+	private boolean ownsExecutorService = false;
 	
 	public ResourcesAggregatorImpl(Logger logger, String encoding) {
 	    this.logger = logger != null ? logger : LoggerFactory.getLogger(this.getClass());
@@ -96,6 +122,102 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
     public void setDigestAlgorithm(String digestAlgorithm) {
         this.digestAlgorithm = digestAlgorithm;
     }
+    /**
+     * Number of long-lived esbuild processes to compress resources with. If 0 (the default) a new esbuild
+     * process is started for every compressed resource. Call {@link #close()} to stop the processes.
+     */
+    public void setEsbuildProcesses(int esbuildProcesses) {
+        IOUtils.closeQuietly(this.esbuildServicePool);
+        this.esbuildServicePool = esbuildProcesses > 0 ? new EsbuildServicePool(esbuildProcesses) : null;
+    }
+
+    /**
+     * Cache of compressed resource content, if null (the default) every resource is compressed.
+     */
+    public void setCompressionCache(CompressionCache compressionCache) {
+        this.compressionCache = compressionCache;
+    }
+
+    /**
+     * If true a manifest of the aggregated inputs is written next to the aggregated skin xml and aggregates
+     * whose inputs have not changed since the previous aggregation are reused instead of being generated again.
+     * Defaults to false.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * If true (the default) the source directories are scanned once at the start of each aggregation and
+     * resources are resolved against that index instead of checking each directory for each resource.
+     */
+    public void setIndexSourceDirectories(boolean indexSourceDirectories) {
+        this.indexSourceDirectories = indexSourceDirectories;
+    }
+
+    /**
+     * Pre-compressed copies of each aggregate to write next to it, their encodings are listed on the aggregated
+     * elements so they can be served directly. Precompressors that are not {@link Precompressor#isAvailable()
+     * available} are skipped. None by default.
+     */
+    public void setPrecompressors(List<Precompressor> precompressors) {
+        final List<Precompressor> availablePrecompressors = new ArrayList<Precompressor>(precompressors.size());
+        for (final Precompressor precompressor : precompressors) {
+            if (precompressor.isAvailable()) {
+                availablePrecompressors.add(precompressor);
+            }
+        }
+        this.precompressors = Collections.unmodifiableList(availablePrecompressors);
+    }
+
+    /**
+     * If true (the default) a compiled descriptor of the aggregated skin xml is written next to it so it can be
+     * loaded without parsing the XML, see {@link ResourcesDaoImpl#writeCompiledResources(Resources, File, File)}
+     */
+    public void setCompiledResources(boolean compiledResources) {
+        this.compiledResources = compiledResources;
+    }
+
+    /**
+     * Executor used to compress resources in parallel. If null (the default) resources are compressed one
+     * at a time on the calling thread. The output is identical either way. The caller is responsible for
+     * shutting down the executor.
+     */
+    public void setExecutorService(ExecutorService executorService) {
+        this.shutdownExecutorService();
+        this.executorService = executorService;
+    }
+    /**
+     * Number of threads to compress resources with, creates a {@link ForkJoinPool} that is shut down by
+     * {@link #close()}. 1 or less compresses resources on the calling thread.
+     * 
+     * @see #setExecutorService(ExecutorService)
+     */
+    public void setAggregationThreads(int aggregationThreads) {
+        this.shutdownExecutorService();
+        if (aggregationThreads > 1) {
+            this.executorService = new ForkJoinPool(aggregationThreads);
+            this.ownsExecutorService = true;
+        }
+    }
+
+    /**
+     * Stops any esbuild processes and threads started by this aggregator
+     */
+    @Override
+    public void close() {
+        IOUtils.closeQuietly(this.esbuildServicePool);
+        this.esbuildServicePool = null;
+        this.shutdownExecutorService();
+    }
+
+    private void shutdownExecutorService() {
+        if (this.ownsExecutorService) {
+            this.executorService.shutdown();
+        }
+        this.executorService = null;
+        this.ownsExecutorService = false;
+    }
 
 
 	@Override
@@ -142,15 +264,55 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 		final List<File> sourceDirectories = new ArrayList<File>(1 + additionalSourceDirectories.size());
 		sourceDirectories.add(resourcesParentDir);
 		sourceDirectories.addAll(additionalSourceDirectories);
+		final SourceDirectoryIndex sourceDirectoryIndex = this.indexSourceDirectories ? SourceDirectoryIndex.build(sourceDirectories) : null;
+		
+		// group CSS and JS elements
+		final CssCallback cssCallback = new CssCallback(digest, sourceDirectories, sourceDirectoryIndex, outputBaseDirectory);
+		final List<Deque<Css>> cssGroups = this.groupBasicIncludes(original.getCss(), cssCallback);
 		
-		// aggregate CSS elements
-		final CssCallback cssCallback = new CssCallback(digest, sourceDirectories, outputBaseDirectory);
-		final List<Css> cssResult = this.aggregateBasicIncludes(original.getCss(), cssCallback);
-
-		// aggregate JS elements
 		final File sharedJavaScriptDirectory = aggregationRequest.getSharedJavaScriptDirectory();
-		final JsCallback jsCallback = new JsCallback(digest, sourceDirectories, outputBaseDirectory, sharedJavaScriptDirectory);
-        final List<Js> jsResult = this.aggregateBasicIncludes(original.getJs(), jsCallback);
+		final JsCallback jsCallback = new JsCallback(digest, sourceDirectories, sourceDirectoryIndex, outputBaseDirectory, sharedJavaScriptDirectory);
+		final List<Deque<Js>> jsGroups = this.groupBasicIncludes(original.getJs(), jsCallback);
+		
+		final String aggregatedFormOutputFileName = this.resourcesDao.getAggregatedSkinName(resourcesXml.getName());
+		
+		// fingerprint the groups so unchanged aggregates from the previous run can be reused
+		final AggregationManifest manifest;
+		if (this.incremental) {
+		    manifest = this.createManifest(aggregationRequest);
+		    manifest.load();
+		    for (final File resourcesFile : this.resourcesDao.getResourcesFiles(resourcesXml)) {
+		        manifest.addFile(resourcesFile);
+		    }
+		    this.addGroups(manifest, cssGroups, sourceDirectories, sourceDirectoryIndex, CSS);
+		    this.addGroups(manifest, jsGroups, sourceDirectories, sourceDirectoryIndex, JS);
+		}
+		else {
+		    manifest = null;
+		}
+		
+		// compress every element up front when running in parallel, the groups are still assembled in order below
+		final ExecutorService executorService = this.executorService;
+		if (executorService != null) {
+		    cssCallback.compressedElements = this.compressInParallel(executorService, 
+		            getChangedGroups(cssGroups, manifest, outputBaseDirectory), sourceDirectories, sourceDirectoryIndex, cssCallback);
+		    jsCallback.compressedElements = this.compressInParallel(executorService, 
+		            getChangedGroups(jsGroups, manifest, outputBaseDirectory), sourceDirectories, sourceDirectoryIndex, jsCallback);
+		}
+		
+		final List<Css> cssResult;
+		final List<Js> jsResult;
+		try {
+		    // aggregate CSS elements
+		    cssResult = this.aggregateGroups(cssGroups, cssCallback, manifest, outputBaseDirectory);
+		    
+		    // aggregate JS elements
+		    jsResult = this.aggregateGroups(jsGroups, jsCallback, manifest, outputBaseDirectory);
+		}
+		finally {
+		    cancelAll(cssCallback.compressedElements);
+		    cancelAll(jsCallback.compressedElements);
+		}
 
 		// build aggregated form result
 		final Resources aggregatedForm = new Resources();
@@ -158,11 +320,41 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 		aggregatedForm.getJs().addAll(jsResult);
 		aggregatedForm.getParameter().addAll(original.getParameter());
 		
-		// dump aggregated form out to output directory
-		final String aggregatedFormOutputFileName = this.resourcesDao.getAggregatedSkinName(resourcesXml.getName());
-		
+		// dump aggregated form out to output directory, replacing the existing file in one step so it is never
+		// seen partially written
         final File aggregatedOutputFile = new File(outputBaseDirectory, aggregatedFormOutputFileName);
-        this.resourcesDao.writeResources(aggregatedForm, aggregatedOutputFile);
+        final File aggregatedTempFile = File.createTempFile(aggregatedFormOutputFileName, ".tmp", outputBaseDirectory);
+        try {
+            this.resourcesDao.writeResources(aggregatedForm, aggregatedTempFile);
+            moveAggregate(aggregatedTempFile, aggregatedOutputFile);
+        }
+        finally {
+            FileUtils.deleteQuietly(aggregatedTempFile);
+        }
+        
+        // the compiled descriptor is only valid for the XML file just written, remove any older one if disabled
+        final File compiledOutputFile = this.resourcesDao.getCompiledResourcesFile(aggregatedOutputFile);
+        if (this.compiledResources) {
+            final File compiledTempFile = File.createTempFile(compiledOutputFile.getName(), ".tmp", outputBaseDirectory);
+            try {
+                this.resourcesDao.writeCompiledResources(aggregatedForm, aggregatedOutputFile, compiledTempFile);
+                moveAggregate(compiledTempFile, compiledOutputFile);
+            }
+            finally {
+                FileUtils.deleteQuietly(compiledTempFile);
+            }
+        }
+        else {
+            FileUtils.deleteQuietly(compiledOutputFile);
+        }
+        
+        if (manifest != null) {
+            manifest.addFile(aggregatedOutputFile);
+            if (this.compiledResources) {
+                manifest.addFile(compiledOutputFile);
+            }
+            manifest.write();
+        }
 		
 		this.logger.info("Aggregated " + original.getJs().size() + 
 		        " JavaScript files down to " + aggregatedForm.getJs().size() + 
@@ -171,58 +363,225 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 		        " for: " + resourcesXml);
 	}
 	
+	/**
+	 * Check if the output of a previous incremental aggregation of the request is still current. Compares the
+	 * skin xml, its imports, every referenced file and the aggregated output with the manifest written by the
+	 * previous aggregation. Files are only read to compare their content hash once their size and last modified
+	 * time match.
+	 * 
+	 * @return true if aggregating the request again would not change anything, always false if not incremental
+	 */
+	public boolean isUpToDate(AggregationRequest aggregationRequest) {
+	    if (!this.incremental || aggregationRequest.getOutputBaseDirectory() == null) {
+	        return false;
+	    }
+	    
+	    final AggregationManifest manifest = this.createManifest(aggregationRequest);
+	    return manifest.load() && manifest.isUpToDate(aggregationRequest.getOutputBaseDirectory());
+	}
+	
+	/**
+	 * @return The files the previous incremental aggregation of the request read, empty if there is no record of
+	 *         a previous aggregation
+	 */
+	Set<File> getDependencies(AggregationRequest aggregationRequest) {
+	    final AggregationManifest manifest = this.createManifest(aggregationRequest);
+	    if (!manifest.load()) {
+	        return Collections.emptySet();
+	    }
+	    
+	    final Set<File> dependencies = manifest.getPreviousFiles();
+	    final String aggregatedFormOutputFileName = this.resourcesDao.getAggregatedSkinName(aggregationRequest.getResourcesXml().getName());
+	    dependencies.remove(new File(aggregationRequest.getOutputBaseDirectory(), aggregatedFormOutputFileName).getAbsoluteFile());
+	    return dependencies;
+	}
+	
+	/**
+	 * Discard the cached skin xml files so changes to them are seen by the next aggregation
+	 */
+	void clearLoadedResources() {
+	    this.resourcesDao.clearLoadedResources();
+	}
+	
 	/**
 	 * Iterate over the list of {@link BasicInclude} sub-classes using the {@link AggregatorCallback#willAggregate(BasicInclude, BasicInclude)}
 	 * and {@link AggregatorCallback#aggregate(Deque)} to generate an aggregated list of {@link BasicInclude} sub-classes.
 	 */
 	protected <T extends BasicInclude> List<T> aggregateBasicIncludes(List<T> original, AggregatorCallback<T> callback) throws IOException {
-        final List<T> result = new LinkedList<T>();
-        final Deque<T> currentAggregateList = new LinkedList<T>();
-        for (final T originalElement : original) {
-            // handle first loop iteration
-            if (currentAggregateList.isEmpty()) {
-                currentAggregateList.add(originalElement);
-            }
-            else {
-                // test if 'originalElement' will aggregate with head element in currentAggregate 
-                final T baseElement = currentAggregateList.getFirst();
-                if (callback.willAggregate(originalElement, baseElement)) {
-                    // matches current criteria, add to currentAggregate
-                    currentAggregateList.add(originalElement);
-                } 
-                else {
-                    // doesn't match criteria
-                    // generate new single aggregate from currentAggregateList
-                    final T aggregate = callback.aggregate(currentAggregateList);
-                    if (null != aggregate) {
-                        // push result
-                        result.add(aggregate);
-                    }
-                    else {
-                        this.logger.warn("Generated 0 byte aggregate from: " + generatePathList(currentAggregateList));
-                    }
-
-                    // zero out currentAggregateList
-                    currentAggregateList.clear();
-
-                    // add originalElement to empty list
-                    currentAggregateList.add(originalElement);
-                }
-            }
-        }
-        
-        // flush the currentAggregateList
-        if (currentAggregateList.size() > 0) {
-            final T aggregate = callback.aggregate(currentAggregateList);
-            if (null != aggregate) {
-                result.add(aggregate);
-            }
-            else {
-                this.logger.warn("Generated 0 byte aggregate from: " + generatePathList(currentAggregateList));
-            }
-        }
-        
-        return result;
+	    return this.aggregateGroups(this.groupBasicIncludes(original, callback), callback);
+	}
+	
+	/**
+	 * Split the list of {@link BasicInclude} sub-classes into runs of elements that
+	 * {@link AggregatorCallback#willAggregate(BasicInclude, BasicInclude)} with the head of the run.
+	 */
+	protected <T extends BasicInclude> List<Deque<T>> groupBasicIncludes(List<T> original, AggregatorCallback<T> callback) {
+	    final List<Deque<T>> groups = new ArrayList<Deque<T>>();
+	    Deque<T> currentAggregateList = null;
+	    for (final T originalElement : original) {
+	        // test if 'originalElement' will aggregate with head element in currentAggregate 
+	        if (currentAggregateList == null || !callback.willAggregate(originalElement, currentAggregateList.getFirst())) {
+	            // first loop iteration or doesn't match criteria, start a new group
+	            currentAggregateList = new LinkedList<T>();
+	            groups.add(currentAggregateList);
+	        }
+	        currentAggregateList.add(originalElement);
+	    }
+	    
+	    return groups;
+	}
+	
+	/**
+	 * Generate a single aggregate for each group using {@link AggregatorCallback#aggregate(Deque)}
+	 */
+	protected <T extends BasicInclude> List<T> aggregateGroups(List<Deque<T>> groups, AggregatorCallback<T> callback) throws IOException {
+	    return this.aggregateGroups(groups, callback, null, null);
+	}
+	
+	/**
+	 * Same as {@link #aggregateGroups(List, AggregatorCallback)} but groups with an unchanged aggregate in the
+	 * manifest reuse that aggregate.
+	 */
+	private <T extends BasicInclude> List<T> aggregateGroups(List<Deque<T>> groups, AggregatorCallback<T> callback, 
+	        AggregationManifest manifest, File outputRoot) throws IOException {
+	    final List<T> result = new LinkedList<T>();
+	    for (final Deque<T> group : groups) {
+	        final String previousAggregate = manifest != null ? manifest.getPreviousAggregate(group, outputRoot) : null;
+	        final T aggregate;
+	        if (previousAggregate != null) {
+	            this.logger.debug("Reusing unchanged aggregate " + previousAggregate);
+	            aggregate = callback.getAggregateElement(previousAggregate, group);
+	            this.precompress(aggregate, new File(outputRoot, previousAggregate), false);
+	        }
+	        else {
+	            aggregate = callback.aggregate(group);
+	        }
+	        
+	        if (null != aggregate) {
+	            if (manifest != null) {
+	                manifest.putAggregate(group, aggregate.getValue());
+	            }
+	            // push result
+	            result.add(aggregate);
+	        }
+	        else {
+	            this.logger.warn("Generated 0 byte aggregate from: " + generatePathList(group));
+	        }
+	    }
+	    
+	    return result;
+	}
+	
+	/**
+	 * Submit the compression of every element that {@link #aggregateList} will read to the executor.
+	 * 
+	 * @param sourceDirectoryIndex Index of the skinDirectories, null to check each directory for each resource
+	 * @return Map of element to its future compressed content, keyed by identity
+	 */
+	<T extends BasicInclude> Map<T, Future<String>> compressInParallel(final ExecutorService executorService,
+	        final List<Deque<T>> groups, final List<File> skinDirectories, final SourceDirectoryIndex sourceDirectoryIndex, 
+	        final AggregatorCallback<T> callback) {
+	    
+	    final Map<T, Future<String>> compressedElements = new IdentityHashMap<T, Future<String>>();
+	    for (final Deque<T> group : groups) {
+	        if (group.size() == 1 && this.resourcesDao.isAbsolute(group.getFirst())) {
+	            // absolute elements are passed through as-is
+	            continue;
+	        }
+	        
+	        for (final T element : group) {
+	            if (element.isCompressed()) {
+	                // already compressed elements are streamed straight into the aggregate
+	                continue;
+	            }
+	            compressedElements.put(element, executorService.submit(() -> {
+	                final StringWriter writer = new StringWriter();
+	                this.writeElement(element, skinDirectories, sourceDirectoryIndex, callback, writer, null);
+	                return writer.toString();
+	            }));
+	        }
+	    }
+	    
+	    return compressedElements;
+	}
+	
+	/**
+	 * Fingerprint each group that will be aggregated into a file, single absolute elements are passed through
+	 * as-is and are not tracked.
+	 */
+	private <T extends BasicInclude> void addGroups(AggregationManifest manifest, List<Deque<T>> groups, 
+	        List<File> sourceDirectories, SourceDirectoryIndex index, String extension) throws IOException {
+	    for (final Deque<T> group : groups) {
+	        if (group.size() == 1 && this.resourcesDao.isAbsolute(group.getFirst())) {
+	            continue;
+	        }
+	        
+	        final List<File> files = new ArrayList<File>(group.size());
+	        for (final T element : group) {
+	            final String value = element.getValue();
+	            final File file = this.findFile(sourceDirectories, index, value);
+	            files.add(file);
+	            
+	            // a file added to an earlier source directory would replace this one
+	            for (int i = 0; i < sourceDirectories.size(); i++) {
+	                final File candidate = new File(sourceDirectories.get(i), value);
+	                final SourceDirectoryIndex.Entry entry = index != null ? index.getEntry(i, value) : null;
+	                if (entry != null) {
+	                    // reuse the metadata from the index rather than checking the file again
+	                    manifest.addFile(candidate, entry.size, entry.lastModified);
+	                }
+	                else if (index != null && !candidate.equals(file)) {
+	                    // findFile would have returned it if it existed when the index was built
+	                    manifest.addFile(candidate, -1, 0);
+	                }
+	                else {
+	                    manifest.addFile(candidate);
+	                }
+	                
+	                if (candidate.equals(file)) {
+	                    break;
+	                }
+	            }
+	        }
+	        manifest.addGroup(group, extension, files);
+	    }
+	}
+	
+	private static <T extends BasicInclude> List<Deque<T>> getChangedGroups(List<Deque<T>> groups, 
+	        AggregationManifest manifest, File outputRoot) {
+	    if (manifest == null) {
+	        return groups;
+	    }
+	    
+	    final List<Deque<T>> changedGroups = new ArrayList<Deque<T>>(groups.size());
+	    for (final Deque<T> group : groups) {
+	        if (manifest.getPreviousAggregate(group, outputRoot) == null) {
+	            changedGroups.add(group);
+	        }
+	    }
+	    return changedGroups;
+	}
+	
+	private AggregationManifest createManifest(AggregationRequest aggregationRequest) {
+	    final String aggregatedFormOutputFileName = this.resourcesDao.getAggregatedSkinName(aggregationRequest.getResourcesXml().getName());
+	    final File manifestFile = new File(aggregationRequest.getOutputBaseDirectory(), FilenameUtils.getBaseName(aggregatedFormOutputFileName) + MANIFEST);
+	    
+	    // everything other than the inputs that affects the content or location of the generated aggregates
+	    final File sharedJavaScriptDirectory = aggregationRequest.getSharedJavaScriptDirectory();
+	    final String settings = "1 " + this.encoding + " " + this.digestAlgorithm + 
+	            " [" + EsbuildCompressor.CSS_COMPRESSOR_ID + "] [" + EsbuildCompressor.JS_COMPRESSOR_ID + "] " + 
+	            (sharedJavaScriptDirectory != null ? sharedJavaScriptDirectory.getAbsolutePath() : "") + " " +
+	            aggregationRequest.getAdditionalSourceDirectories() + " " + this.precompressors;
+	    
+	    return new AggregationManifest(manifestFile, settings);
+	}
+	
+	private static void cancelAll(Map<?, Future<String>> futures) {
+	    if (futures != null) {
+	        for (final Future<String> future : futures.values()) {
+	            future.cancel(true);
+	        }
+	    }
 	}
 	
 	/**
@@ -234,6 +593,24 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 	 * @throws IOException If the File cannot be found
 	 */
 	protected File findFile(final List<File> sourceDirectories, String resourceFileName) throws IOException {
+	    return this.findFile(sourceDirectories, null, resourceFileName);
+	}
+	
+	/**
+	 * Same as {@link #findFile(List, String)}, resources in the index are resolved without checking each directory.
+	 * 
+	 * @param index Index built from the sourceDirectories, null to check each directory
+	 */
+	File findFile(final List<File> sourceDirectories, final SourceDirectoryIndex index, String resourceFileName) throws IOException {
+	    if (index != null) {
+	        for (int i = 0; i < sourceDirectories.size(); i++) {
+	            if (index.getEntry(i, resourceFileName) != null) {
+	                return new File(sourceDirectories.get(i), resourceFileName);
+	            }
+	        }
+	    }
+	    
+	    // not indexed, paths outside of the source directories, case insensitive file systems or new files
 	    for (final File sourceDirectory : sourceDirectories) {
 	        final File resourceFile = new File(sourceDirectory, resourceFileName);
 	        if (resourceFile.exists()) {
@@ -241,7 +618,9 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 	        }
 	    }
 	    
-	    throw new IOException("Failed to find resource " + resourceFileName + " in any of the source directories: " + sourceDirectories);
+	    final List<File> similar = index != null ? index.findSimilar(resourceFileName) : Collections.<File>emptyList();
+	    throw new IOException("Failed to find resource " + resourceFileName + " in any of the source directories: " + sourceDirectories + 
+	            (similar.isEmpty() ? "" : ", files with the same name in a different case: " + similar));
 	}
 
 	/**
@@ -252,6 +631,21 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 	protected <T extends BasicInclude> T aggregateList(final MessageDigest digest, final Deque<T> elements, 
 	        final List<File> skinDirectories, final File outputRoot, final File alternateOutput, 
 	        final String extension, final AggregatorCallback<T> callback) throws IOException {
+	    return this.aggregateList(digest, elements, skinDirectories, null, outputRoot, alternateOutput, extension, callback, null);
+	}
+
+	/**
+	 * Same as {@link #aggregateList(MessageDigest, Deque, List, File, File, String, AggregatorCallback)} but
+	 * elements found in compressedElements are not read and compressed again, the already compressed content
+	 * is used instead.
+	 * 
+	 * @param sourceDirectoryIndex Index of the skinDirectories, null to check each directory for each resource
+	 */
+	<T extends BasicInclude> T aggregateList(final MessageDigest digest, final Deque<T> elements, 
+	        final List<File> skinDirectories, final SourceDirectoryIndex sourceDirectoryIndex, 
+	        final File outputRoot, final File alternateOutput, 
+	        final String extension, final AggregatorCallback<T> callback, 
+	        final Map<T, Future<String>> compressedElements) throws IOException {
 	    
         if (null == elements || elements.size() == 0) {
             return null;
@@ -268,47 +662,42 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
         try {
             //Make sure we're working with a clean MessageDigest
             digest.reset();
-            TrimmingWriter trimmingWriter = null;
+            final Charset charset = Charset.forName(this.encoding);
+            final TrimmingOutputStream trimmingStream;
+            final TrimmingWriter trimmingWriter;
+            Writer aggregateWriter = null;
             try {
                 final BufferedOutputStream bufferedFileStream = new BufferedOutputStream(new FileOutputStream(tempFile));
                 final MessageDigestOutputStream digestStream = new MessageDigestOutputStream(bufferedFileStream, digest);
-                final OutputStreamWriter aggregateWriter = new OutputStreamWriter(digestStream, this.encoding);
-                trimmingWriter = new TrimmingWriter(aggregateWriter);
+                if (TrimmingOutputStream.isSupported(charset)) {
+                    // trim the encoded bytes so pre-compressed resources can be copied in without decoding them
+                    trimmingStream = new TrimmingOutputStream(digestStream, charset);
+                    trimmingWriter = null;
+                    aggregateWriter = new OutputStreamWriter(trimmingStream, charset);
+                }
+                else {
+                    trimmingStream = null;
+                    trimmingWriter = new TrimmingWriter(new OutputStreamWriter(digestStream, charset));
+                    aggregateWriter = trimmingWriter;
+                }
                 
                 for (final T element: elements) {
-                    final File resourceFile = this.findFile(skinDirectories, element.getValue());
-                    
-                    FileInputStream fis = null;
-                    try {
-                        fis = new FileInputStream(resourceFile);
-                        final BOMInputStream bomIs = new BOMInputStream(new BufferedInputStream(fis));
-                        if (bomIs.hasBOM()) {
-                            logger.debug("Stripping UTF-8 BOM from: " + resourceFile);
-                        }
-                        final Reader resourceIn = new InputStreamReader(bomIs, this.encoding);
-                        if (element.isCompressed()) {
-                            final String resourceStr = IOUtils.toString(resourceIn);
-                            final String resourceEolFix = resourceStr.replaceAll("\\r", "");
-                            final InputStream isEolFix = IOUtils.toInputStream(resourceEolFix, this.encoding);
-                            IOUtils.copy(isEolFix, trimmingWriter, this.encoding);
-                        } else {
-                            callback.compress(resourceIn, trimmingWriter);
-                        }
+                    final Future<String> compressedElement = compressedElements != null ? compressedElements.get(element) : null;
+                    if (compressedElement != null) {
+                        aggregateWriter.write(getCompressedElement(compressedElement));
                     }
-                    catch (IOException e) {
-                        throw new IOException("Failed to read '" + resourceFile + "' for skin: " + skinDirectories.get(0), e);
-                    }
-                    finally {
-                        IOUtils.closeQuietly(fis);
+                    else {
+                        this.writeElement(element, skinDirectories, sourceDirectoryIndex, callback, aggregateWriter, trimmingStream);
                     }
-                    trimmingWriter.write(IOUtils.LINE_SEPARATOR_UNIX); // Needs to be consistent regardless of OS
+                    aggregateWriter.write(IOUtils.LINE_SEPARATOR_UNIX); // Needs to be consistent regardless of OS
                 }
     		}
             finally {
-                IOUtils.closeQuietly(trimmingWriter);
+                IOUtils.closeQuietly(aggregateWriter);
             }
             
-            if (trimmingWriter.getCharCount() == 0) {
+            final int charCount = trimmingStream != null ? trimmingStream.getCharCount() : trimmingWriter.getCharCount();
+            if (charCount == 0) {
                 return null;
             }
     
@@ -333,8 +722,7 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
     		}
     		
     		//Move the aggregate file into the correct location
-    		FileUtils.deleteQuietly(aggregateOutputFile);
-            FileUtils.moveFile(tempFile, aggregateOutputFile);
+            moveAggregate(tempFile, aggregateOutputFile);
         }
         finally {
             //Make sure the temp file gets deleted
@@ -345,7 +733,142 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 		
 		this.logAggregation(elements, newResultValue);
 		
-		return callback.getAggregateElement(newResultValue, elements);
+		final T aggregate = callback.getAggregateElement(newResultValue, elements);
+		this.precompress(aggregate, aggregateOutputFile, true);
+		return aggregate;
+	}
+	
+	/**
+	 * Write the pre-compressed copies of an aggregate and list their encodings on the aggregate element.
+	 * 
+	 * @param replace If false existing copies are kept, the aggregate file name is its content hash so they match it
+	 */
+	private void precompress(BasicInclude aggregate, File aggregateFile, boolean replace) throws IOException {
+	    for (final Precompressor precompressor : this.precompressors) {
+	        final File compressedFile = precompressor.getCompressedFile(aggregateFile);
+	        if ((!replace && compressedFile.isFile()) || precompressor.compress(aggregateFile)) {
+	            aggregate.getEncodings().add(precompressor.getEncoding());
+	        }
+	    }
+	}
+
+	/**
+	 * Replace the aggregate file. Skins aggregated concurrently can generate the same aggregate in a shared
+	 * directory, the file name is the content hash so whichever copy ends up in place is correct.
+	 */
+	static void moveAggregate(File tempFile, File aggregateOutputFile) throws IOException {
+	    final Path source = tempFile.toPath();
+	    final Path target = aggregateOutputFile.toPath();
+	    try {
+	        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    catch (AtomicMoveNotSupportedException e) {
+	        try {
+	            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	        }
+	        catch (FileAlreadyExistsException fe) {
+	            //Another thread created the same aggregate between the delete and copy of a cross filesystem move
+	        }
+	    }
+	}
+
+	/**
+	 * Write the content of a single element, compressed via the callback unless the element is already compressed.
+	 */
+	protected <T extends BasicInclude> void writeElement(final T element, final List<File> skinDirectories, 
+	        final AggregatorCallback<T> callback, final Writer writer) throws IOException {
+	    this.writeElement(element, skinDirectories, null, callback, writer, null);
+	}
+	
+	/**
+	 * Same as {@link #writeElement(BasicInclude, List, AggregatorCallback, Writer)}, if encodedOut is not null
+	 * the writer encodes to it using the aggregator's encoding and already compressed elements are copied
+	 * straight to it without being decoded. Resources in the sourceDirectoryIndex are resolved without checking
+	 * each directory.
+	 */
+	private <T extends BasicInclude> void writeElement(final T element, final List<File> skinDirectories, 
+	        final SourceDirectoryIndex sourceDirectoryIndex, final AggregatorCallback<T> callback, 
+	        final Writer writer, final OutputStream encodedOut) throws IOException {
+	    
+	    final File resourceFile = this.findFile(skinDirectories, sourceDirectoryIndex, element.getValue());
+	    
+	    FileInputStream fis = null;
+	    try {
+	        fis = new FileInputStream(resourceFile);
+	        final BOMInputStream bomIs = new BOMInputStream(fis);
+	        if (bomIs.hasBOM()) {
+	            logger.debug("Stripping UTF-8 BOM from: " + resourceFile);
+	        }
+	        if (element.isCompressed()) {
+	            if (encodedOut != null) {
+	                // the source and output encodings match, only the carriage returns need removing
+	                writer.flush();
+	                copyWithoutCarriageReturns(bomIs, encodedOut);
+	            }
+	            else {
+	                copyWithoutCarriageReturns(new InputStreamReader(bomIs, this.encoding), writer);
+	            }
+	        } else {
+	            callback.compress(new InputStreamReader(new BufferedInputStream(bomIs), this.encoding), writer);
+	        }
+	    }
+	    catch (IOException e) {
+	        throw new IOException("Failed to read '" + resourceFile + "' for skin: " + skinDirectories.get(0), e);
+	    }
+	    finally {
+	        IOUtils.closeQuietly(fis);
+	    }
+	}
+	
+	private static void copyWithoutCarriageReturns(InputStream in, OutputStream out) throws IOException {
+	    final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+	    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+	        int start = 0;
+	        for (int i = 0; i < read; i++) {
+	            if (buffer[i] == '\r') {
+	                out.write(buffer, start, i - start);
+	                start = i + 1;
+	            }
+	        }
+	        out.write(buffer, start, read - start);
+	    }
+	}
+	
+	private static void copyWithoutCarriageReturns(Reader in, Writer out) throws IOException {
+	    final char[] buffer = new char[COPY_BUFFER_SIZE];
+	    for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+	        int start = 0;
+	        for (int i = 0; i < read; i++) {
+	            if (buffer[i] == '\r') {
+	                out.write(buffer, start, i - start);
+	                start = i + 1;
+	            }
+	        }
+	        out.write(buffer, start, read - start);
+	    }
+	}
+	
+	private static String getCompressedElement(Future<String> compressedElement) throws IOException {
+	    try {
+	        return compressedElement.get();
+	    }
+	    catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        throw new IOException("Interrupted waiting for a resource to be compressed", e);
+	    }
+	    catch (ExecutionException e) {
+	        final Throwable cause = e.getCause();
+	        if (cause instanceof IOException) {
+	            throw (IOException) cause;
+	        }
+	        if (cause instanceof RuntimeException) {
+	            throw (RuntimeException) cause;
+	        }
+	        if (cause instanceof Error) {
+	            throw (Error) cause;
+	        }
+	        throw new IOException(cause);
+	    }
 	}
 
     /**
@@ -457,21 +980,41 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
     }
     
     private class JsCallback implements AggregatorCallback<Js> {
+        private Map<Js, Future<String>> compressedElements;
         private final MessageDigest digest;
         private final List<File> sourceDirectories;
+        private final SourceDirectoryIndex sourceDirectoryIndex;
         private final File outputBaseDirectory;
         private final File sharedJavaScriptDirectory;
         
-        public JsCallback(MessageDigest digest, List<File> sourceDirectories, File outputBaseDirectory, File sharedJavaScriptDirectory) {
+        public JsCallback(MessageDigest digest, List<File> sourceDirectories, SourceDirectoryIndex sourceDirectoryIndex, 
+                File outputBaseDirectory, File sharedJavaScriptDirectory) {
             this.digest = digest;
             this.sourceDirectories = sourceDirectories;
+            this.sourceDirectoryIndex = sourceDirectoryIndex;
             this.outputBaseDirectory = outputBaseDirectory;
             this.sharedJavaScriptDirectory = sharedJavaScriptDirectory;
         }
 
         @Override
         public void compress(Reader reader, Writer writer) throws IOException {
-            EsbuildCompressor.compressJavaScript(reader, writer);
+            final CompressionCache cache = compressionCache;
+            if (cache != null) {
+                cache.compress(reader, writer, EsbuildCompressor.JS_COMPRESSOR_ID, this::compressUncached);
+            }
+            else {
+                this.compressUncached(reader, writer);
+            }
+        }
+
+        private void compressUncached(Reader reader, Writer writer) throws IOException {
+            final EsbuildServicePool servicePool = esbuildServicePool;
+            if (servicePool != null) {
+                servicePool.compressJavaScript(reader, writer);
+            }
+            else {
+                EsbuildCompressor.compressJavaScript(reader, writer);
+            }
         }
 
         @Override
@@ -496,7 +1039,7 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
                 alternateOutput = sharedJavaScriptDirectory;
             }
             
-            return aggregateList(digest, list, sourceDirectories, outputBaseDirectory, alternateOutput, JS, this);
+            return aggregateList(digest, list, sourceDirectories, sourceDirectoryIndex, outputBaseDirectory, alternateOutput, JS, this, compressedElements);
         }
 
         @Override
@@ -506,19 +1049,39 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
     }
     
     private class CssCallback implements AggregatorCallback<Css> {
+        private Map<Css, Future<String>> compressedElements;
         private final MessageDigest digest;
         private final List<File> sourceDirectories;
+        private final SourceDirectoryIndex sourceDirectoryIndex;
         private final File outputBaseDirectory;
         
-        public CssCallback(MessageDigest digest, List<File> sourceDirectories, File outputBaseDirectory) {
+        public CssCallback(MessageDigest digest, List<File> sourceDirectories, SourceDirectoryIndex sourceDirectoryIndex, 
+                File outputBaseDirectory) {
             this.digest = digest;
             this.sourceDirectories = sourceDirectories;
+            this.sourceDirectoryIndex = sourceDirectoryIndex;
             this.outputBaseDirectory = outputBaseDirectory;
         }
 
         @Override
         public void compress(Reader reader, Writer writer) throws IOException {
-            EsbuildCompressor.compressCss(reader, writer);
+            final CompressionCache cache = compressionCache;
+            if (cache != null) {
+                cache.compress(reader, writer, EsbuildCompressor.CSS_COMPRESSOR_ID, this::compressUncached);
+            }
+            else {
+                this.compressUncached(reader, writer);
+            }
+        }
+
+        private void compressUncached(Reader reader, Writer writer) throws IOException {
+            final EsbuildServicePool servicePool = esbuildServicePool;
+            if (servicePool != null) {
+                servicePool.compressCss(reader, writer);
+            }
+            else {
+                EsbuildCompressor.compressCss(reader, writer);
+            }
         }
 
         @Override
@@ -536,7 +1099,7 @@ public class ResourcesAggregatorImpl implements ResourcesAggregator {
 
         @Override
         public Css aggregate(Deque<Css> list) throws IOException {
-            return aggregateList(digest, list, sourceDirectories, outputBaseDirectory, null, CSS, this);
+            return aggregateList(digest, list, sourceDirectories, sourceDirectoryIndex, outputBaseDirectory, null, CSS, this, compressedElements);
         }
 
         @Override
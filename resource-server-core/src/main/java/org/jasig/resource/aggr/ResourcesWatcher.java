@@ -0,0 +1,249 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.resourceserver.aggr.AggregationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the source directories of a set of {@link AggregationRequest}s and aggregates a request again when
+ * a file it depends on changes. The aggregator must be incremental, it only regenerates the aggregates whose
+ * files changed and tracks which files each request depends on.
+ * <p>
+ * {@link #watch()} blocks until the watcher is closed or the calling thread is interrupted.
+ */
+public class ResourcesWatcher implements Closeable {
+    /**
+     * Time to wait for more events after a change, editors often write a file in several steps
+     */
+    private static final long QUIET_PERIOD_MILLIS = 100;
+
+    protected final Logger logger;
+    private final ResourcesAggregatorImpl aggregator;
+    private final List<AggregationRequest> aggregationRequests;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private final Map<Path, Set<AggregationRequest>> dependentRequests = new HashMap<Path, Set<AggregationRequest>>();
+
+    public ResourcesWatcher(Logger logger, ResourcesAggregatorImpl aggregator, Collection<AggregationRequest> aggregationRequests) throws IOException {
+        this.logger = logger != null ? logger : LoggerFactory.getLogger(this.getClass());
+        this.aggregator = aggregator;
+        this.aggregationRequests = new ArrayList<AggregationRequest>(aggregationRequests);
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Aggregate every request that is not up to date then re-aggregate requests as their files change.
+     */
+    public void watch() throws IOException, InterruptedException {
+        this.aggregator.setIncremental(true);
+
+        final Set<Path> sourceDirectories = new LinkedHashSet<Path>();
+        for (final AggregationRequest aggregationRequest : this.aggregationRequests) {
+            sourceDirectories.add(toPath(aggregationRequest.getResourcesXml().getAbsoluteFile().getParentFile()));
+            for (final File additionalSourceDirectory : aggregationRequest.getAdditionalSourceDirectories()) {
+                sourceDirectories.add(toPath(additionalSourceDirectory));
+            }
+        }
+        for (final Path sourceDirectory : sourceDirectories) {
+            this.registerTree(sourceDirectory);
+        }
+
+        for (final AggregationRequest aggregationRequest : this.aggregationRequests) {
+            if (!this.aggregator.isUpToDate(aggregationRequest)) {
+                this.aggregate(aggregationRequest);
+            }
+            this.updateDependencies(aggregationRequest);
+        }
+        logger.info("Watching {} for changes", sourceDirectories);
+
+        try {
+            while (true) {
+                WatchKey watchKey = this.watchService.take();
+
+                final Set<Path> changedFiles = new LinkedHashSet<Path>();
+                boolean overflow = false;
+                do {
+                    overflow |= this.pollEvents(watchKey, changedFiles);
+                    watchKey = this.watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                } while (watchKey != null);
+
+                final Collection<AggregationRequest> affectedRequests;
+                if (overflow) {
+                    logger.warn("Missed file change events, aggregating everything");
+                    affectedRequests = this.aggregationRequests;
+                }
+                else {
+                    affectedRequests = this.getAffectedRequests(changedFiles);
+                }
+
+                if (!affectedRequests.isEmpty()) {
+                    this.aggregator.clearLoadedResources();
+                    for (final AggregationRequest aggregationRequest : affectedRequests) {
+                        this.aggregate(aggregationRequest);
+                        this.updateDependencies(aggregationRequest);
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            //Closed, stop watching
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+
+    /**
+     * Collect the files changed in a watched directory, new directories are watched as well.
+     *
+     * @return true if events were lost
+     */
+    private boolean pollEvents(WatchKey watchKey, Set<Path> changedFiles) throws IOException {
+        final Path directory = this.watchedDirectories.get(watchKey);
+        boolean overflow = false;
+
+        for (final WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+
+            final Path changedFile = directory.resolve((Path) event.context());
+            changedFiles.add(changedFile);
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(changedFile)) {
+                this.registerTree(changedFile);
+            }
+        }
+
+        if (!watchKey.reset()) {
+            this.watchedDirectories.remove(watchKey);
+        }
+        return overflow;
+    }
+
+    private Collection<AggregationRequest> getAffectedRequests(Set<Path> changedFiles) {
+        final Set<AggregationRequest> affectedRequests = Collections.newSetFromMap(new IdentityHashMap<AggregationRequest, Boolean>());
+        for (final Path changedFile : changedFiles) {
+            final Set<AggregationRequest> requests = this.dependentRequests.get(changedFile);
+            if (requests != null) {
+                logger.debug("{} changed, aggregating {}", changedFile, requests);
+                affectedRequests.addAll(requests);
+            }
+        }
+
+        //Keep the configured order
+        final List<AggregationRequest> orderedRequests = new ArrayList<AggregationRequest>(affectedRequests.size());
+        for (final AggregationRequest aggregationRequest : this.aggregationRequests) {
+            if (affectedRequests.contains(aggregationRequest)) {
+                orderedRequests.add(aggregationRequest);
+            }
+        }
+        return orderedRequests;
+    }
+
+    private void aggregate(AggregationRequest aggregationRequest) {
+        final long start = System.nanoTime();
+        try {
+            this.aggregator.aggregate(aggregationRequest);
+            logger.info("Aggregated {} in {}ms", aggregationRequest.getResourcesXml(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        catch (IOException | AggregationException e) {
+            //Keep watching, the next change will probably fix it
+            logger.error("Failed to aggregate " + aggregationRequest.getResourcesXml(), e);
+        }
+    }
+
+    /**
+     * Map every file the request depends on back to the request. The skin xml is always a dependency so a
+     * request that failed to aggregate is retried when it changes.
+     */
+    private void updateDependencies(AggregationRequest aggregationRequest) {
+        for (final Set<AggregationRequest> requests : this.dependentRequests.values()) {
+            requests.remove(aggregationRequest);
+        }
+
+        final Set<File> dependencies = new LinkedHashSet<File>(this.aggregator.getDependencies(aggregationRequest));
+        dependencies.add(aggregationRequest.getResourcesXml());
+        for (final File dependency : dependencies) {
+            final Path path = toPath(dependency);
+            Set<AggregationRequest> requests = this.dependentRequests.get(path);
+            if (requests == null) {
+                requests = new LinkedHashSet<AggregationRequest>();
+                this.dependentRequests.put(path, requests);
+            }
+            requests.add(aggregationRequest);
+        }
+    }
+
+    private static Path toPath(File file) {
+        //Imports can be relative to the importing file, normalize so paths match the watch events
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+
+    private void registerTree(Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!watchedDirectories.containsValue(dir)) {
+                    final WatchKey watchKey = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchedDirectories.put(watchKey, dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
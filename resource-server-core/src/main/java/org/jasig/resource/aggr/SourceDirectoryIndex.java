@@ -0,0 +1,144 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Index of every file in the source directories of an aggregation, built with a single walk of each directory.
+ * Passed along with the list of source directories it was built from so
+ * {@link ResourcesAggregatorImpl#findFile(List, SourceDirectoryIndex, String)} resolves resources without
+ * probing each directory, also provides the size and last modified time of each file.
+ * <p>
+ * The index is a snapshot, files created after it was built are not in it.
+ */
+class SourceDirectoryIndex {
+    /**
+     * Size and last modified time of an indexed file
+     */
+    static final class Entry {
+        final long size;
+        final long lastModified;
+
+        private Entry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final List<File> directories;
+    private final List<Map<String, Entry>> indexes;
+
+    private SourceDirectoryIndex(List<File> directories, List<Map<String, Entry>> indexes) {
+        this.directories = directories;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Index every file in the directories, directories that do not exist get an empty index
+     */
+    static SourceDirectoryIndex build(List<File> directories) throws IOException {
+        final List<Map<String, Entry>> indexes = new ArrayList<Map<String, Entry>>(directories.size());
+        for (final File directory : directories) {
+            indexes.add(index(directory));
+        }
+        return new SourceDirectoryIndex(new ArrayList<File>(directories), indexes);
+    }
+
+    /**
+     * @param directoryIndex Position of the directory in the list the index was built from
+     * @return The entry for the resource in the specified directory, null if it is not in the index
+     */
+    Entry getEntry(int directoryIndex, String resourceFileName) {
+        final String key = toKey(resourceFileName);
+        if (key == null) {
+            return null;
+        }
+        return this.indexes.get(directoryIndex).get(key);
+    }
+
+    /**
+     * @return Files in the index whose path only differs from the resource by case, for error messages
+     */
+    List<File> findSimilar(String resourceFileName) {
+        final String key = toKey(resourceFileName);
+        if (key == null) {
+            return Collections.emptyList();
+        }
+
+        final List<File> similar = new ArrayList<File>();
+        for (int i = 0; i < this.directories.size(); i++) {
+            for (final String indexedKey : this.indexes.get(i).keySet()) {
+                if (indexedKey.equalsIgnoreCase(key)) {
+                    similar.add(new File(this.directories.get(i), indexedKey));
+                }
+            }
+        }
+        return similar;
+    }
+
+    private static String toKey(String resourceFileName) {
+        final String key = FilenameUtils.normalize(resourceFileName, true);
+        if (key == null || key.startsWith("/") || key.startsWith("../")) {
+            return null;
+        }
+        return key.startsWith("./") ? key.substring(2) : key;
+    }
+
+    private static Map<String, Entry> index(File directory) throws IOException {
+        final Map<String, Entry> index = new HashMap<String, Entry>();
+        if (!directory.isDirectory()) {
+            return index;
+        }
+
+        final Path root = directory.toPath();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    final String key = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    index.put(key, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                //Unreadable entries fall back to probing in findFile
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return index;
+    }
+}
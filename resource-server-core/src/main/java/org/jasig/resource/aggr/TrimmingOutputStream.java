@@ -0,0 +1,190 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte level version of {@link TrimmingWriter} for encoded text, trims whitespace off the start and end of
+ * everything written to it without buffering the whole stream.
+ * <p>
+ * Only supports UTF-8 and single byte encodings that are a superset of ASCII, see {@link #isSupported(Charset)}.
+ * Whitespace is the ASCII characters {@link Character#isWhitespace(char)} matches, the few non-ASCII
+ * whitespace characters are treated as content.
+ */
+public class TrimmingOutputStream extends FilterOutputStream {
+    private static final String ASCII_WHITESPACE = "\t\n\u000B\f\r\u001C\u001D\u001E\u001F ";
+
+    private final boolean utf8;
+    private byte[] trimEndBuffer = new byte[64];
+    private int trimEndLength = 0;
+    private boolean trimmingStart = true;
+    private int charCount = 0;
+
+    /**
+     * @param charset Encoding of the bytes written to the stream, must be supported
+     */
+    public TrimmingOutputStream(OutputStream out, Charset charset) {
+        super(out);
+        if (!isSupported(charset)) {
+            throw new IllegalArgumentException("Unsupported charset: " + charset);
+        }
+        this.utf8 = StandardCharsets.UTF_8.equals(charset);
+    }
+
+    /**
+     * @return true if bytes in the charset can be trimmed without decoding them
+     */
+    public static boolean isSupported(Charset charset) {
+        if (StandardCharsets.UTF_8.equals(charset)) {
+            return true;
+        }
+        if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+
+        final String ascii = ASCII_WHITESPACE + "azAZ09";
+        return Arrays.equals(ascii.getBytes(StandardCharsets.US_ASCII), ascii.getBytes(charset));
+    }
+
+    /**
+     * Number of characters written post-trimming
+     */
+    public int getCharCount() {
+        return this.charCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (isWhitespace((byte) b)) {
+            if (!this.trimmingStart) {
+                this.bufferTrimEnd((byte) b);
+            }
+            return;
+        }
+
+        this.trimmingStart = false;
+        this.flushBuffer();
+        this.countChar((byte) b);
+        this.out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int start = off;
+        final int end = off + len;
+
+        //Trimming whitespace off the start
+        if (this.trimmingStart) {
+            while (start < end && isWhitespace(b[start])) {
+                start++;
+            }
+            if (start == end) {
+                return;
+            }
+            this.trimmingStart = false;
+        }
+
+        //Trimming whitespace off the end
+        int contentEnd = end;
+        while (contentEnd > start && isWhitespace(b[contentEnd - 1])) {
+            contentEnd--;
+        }
+
+        //Unless the provided data was completely whitespace flush any buffered data and write the content
+        if (contentEnd > start) {
+            this.flushBuffer();
+            this.countChars(b, start, contentEnd - start);
+            this.out.write(b, start, contentEnd - start);
+        }
+
+        //If there was whitespace at the end of the provided data buffer it for future use
+        if (contentEnd < end) {
+            this.bufferTrimEnd(b, contentEnd, end - contentEnd);
+        }
+    }
+
+    /**
+     * Discards any buffered trailing whitespace and closes the stream
+     */
+    @Override
+    public void close() throws IOException {
+        this.trimEndLength = 0;
+        super.close();
+    }
+
+    protected void flushBuffer() throws IOException {
+        if (this.trimEndLength > 0) {
+            this.out.write(this.trimEndBuffer, 0, this.trimEndLength);
+            this.charCount += this.trimEndLength;
+            this.trimEndLength = 0;
+        }
+    }
+
+    private void bufferTrimEnd(byte b) {
+        this.ensureTrimEndCapacity(this.trimEndLength + 1);
+        this.trimEndBuffer[this.trimEndLength++] = b;
+    }
+
+    private void bufferTrimEnd(byte[] b, int off, int len) {
+        final int required = this.trimEndLength + len;
+        this.ensureTrimEndCapacity(required);
+        System.arraycopy(b, off, this.trimEndBuffer, this.trimEndLength, len);
+        this.trimEndLength = required;
+    }
+
+    private void ensureTrimEndCapacity(int required) {
+        if (required > this.trimEndBuffer.length) {
+            this.trimEndBuffer = Arrays.copyOf(this.trimEndBuffer, Math.max(required, this.trimEndBuffer.length * 2));
+        }
+    }
+
+    private void countChars(byte[] b, int off, int len) {
+        if (!this.utf8) {
+            this.charCount += len;
+            return;
+        }
+
+        for (int i = off; i < off + len; i++) {
+            this.countChar(b[i]);
+        }
+    }
+
+    private void countChar(byte b) {
+        if (!this.utf8) {
+            this.charCount++;
+            return;
+        }
+
+        //Count UTF-16 chars: one per sequence lead byte, two for 4 byte sequences (surrogate pairs)
+        final int lead = b & 0xF8;
+        if ((lead & 0xC0) != 0x80) {
+            this.charCount += lead == 0xF0 ? 2 : 1;
+        }
+    }
+
+    static boolean isWhitespace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+    }
+}
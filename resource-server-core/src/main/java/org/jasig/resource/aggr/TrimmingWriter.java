@@ -21,6 +21,7 @@ package org.jasig.resource.aggr;
 import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Arrays;
 
 /**
  * Performs the same function as {@link String#trim()} on the whole of the input without having to buffer the entire
@@ -30,7 +31,13 @@ import java.io.Writer;
  * @version $Revision$
  */
 public class TrimmingWriter extends FilterWriter {
-    private final StringBuilder trimEndBuffer = new StringBuilder();
+    /**
+     * Initial size of the trailing whitespace buffer, it is shrunk back to this after holding an unusually long run
+     */
+    private static final int TRIM_END_BUFFER_SIZE = 64;
+    
+    private char[] trimEndBuffer = new char[TRIM_END_BUFFER_SIZE];
+    private int trimEndLength = 0;
     private boolean trimmingStart = true;
     private int charCount = 0;
 
@@ -47,119 +54,123 @@ public class TrimmingWriter extends FilterWriter {
 
     @Override
     public void write(int c) throws IOException {
-        if (trimmingStart) {
-            if (Character.isWhitespace(c)) {
-                return;
+        final char ch = (char) c;
+        if (isWhitespace(ch)) {
+            if (!trimmingStart) {
+                bufferTrimEnd(ch);
             }
-            
-            trimmingStart = false;
-        }
-        else if (Character.isWhitespace(c)) {
-            trimEndBuffer.append((char)c);
             return;
         }
-        else if (trimEndBuffer.length() > 0) {
-            flushBuffer();
-        }
         
+        trimmingStart = false;
+        flushBuffer();
         charCount++;
-        super.write(c);
+        out.write(ch);
     }
 
     @Override
     public void write(char[] cbuf, int off, int len) throws IOException {
+        int start = off;
+        final int end = off + len;
+        
         //Trimming whitespace off the start
         if (trimmingStart) {
-            int idx = 0;
-            for (; trimmingStart && idx < len; idx++) {
-                if (!Character.isWhitespace(cbuf[idx + off])) {
-                    trimmingStart = false;
-                    off += idx;
-                    len -= idx;
-                }
+            while (start < end && isWhitespace(cbuf[start])) {
+                start++;
             }
-            
-            if (idx == len) {
+            if (start == end) {
                 return;
             }
+            trimmingStart = false;
         }
         
         //Trimming whitespace off the end
-        int idx = 0;
-        while (idx < len && Character.isWhitespace(cbuf[off + len - idx - 1])) {
-            idx++;
+        int contentEnd = end;
+        while (contentEnd > start && isWhitespace(cbuf[contentEnd - 1])) {
+            contentEnd--;
         }
         
-        //Unless the provided data was completely whitespace flush any buffered data
-        if (idx != len && trimEndBuffer.length() > 0) {
+        //Unless the provided data was completely whitespace flush any buffered data and write the content
+        if (contentEnd > start) {
             flushBuffer();
+            charCount += contentEnd - start;
+            out.write(cbuf, start, contentEnd - start);
         }
         
         //If there was whitespace at the end of the provided data buffer it for future use
-        if (idx > 0) {
-            //String buffer appends strings with start/end but char[] with start/len
-            trimEndBuffer.append(cbuf, off + len - idx, idx);
-            len -= idx;
+        for (int i = contentEnd; i < end; i++) {
+            bufferTrimEnd(cbuf[i]);
         }
-        
-        //Write out whats left
-        charCount += len;
-        super.write(cbuf, off, len);
     }
 
     @Override
     public void write(String str, int off, int len) throws IOException {
+        int start = off;
+        final int end = off + len;
+        
         //Trimming whitespace off the start
         if (trimmingStart) {
-            int idx = 0;
-            for (; trimmingStart && idx < len; idx++) {
-                if (!Character.isWhitespace(str.charAt(idx + off))) {
-                    trimmingStart = false;
-                    off += idx;
-                    len -= idx;
-                }
+            while (start < end && isWhitespace(str.charAt(start))) {
+                start++;
             }
-            
-            if (idx == len) {
+            if (start == end) {
                 return;
             }
+            trimmingStart = false;
         }
         
         //Trimming whitespace off the end
-        int idx = 0;
-        while (idx < len && Character.isWhitespace(str.charAt(off + len - idx - 1))) {
-            idx++;
+        int contentEnd = end;
+        while (contentEnd > start && isWhitespace(str.charAt(contentEnd - 1))) {
+            contentEnd--;
         }
         
-        //Unless the provided data was completely whitespace flush any buffered data
-        if (idx != len && trimEndBuffer.length() > 0) {
+        //Unless the provided data was completely whitespace flush any buffered data and write the content
+        if (contentEnd > start) {
             flushBuffer();
+            charCount += contentEnd - start;
+            out.write(str, start, contentEnd - start);
         }
         
         //If there was whitespace at the end of the provided data buffer it for future use
-        if (idx > 0) {
-            //String buffer appends strings with start/end but char[] with start/len
-            trimEndBuffer.append(str, off + len - idx, off + len);
-            len -= idx;
+        for (int i = contentEnd; i < end; i++) {
+            bufferTrimEnd(str.charAt(i));
         }
-        
-        //Write out whats left
-        charCount += len;
-        super.write(str, off, len);
     }
     
     @Override
     public void close() throws IOException {
-        this.trimEndBuffer.setLength(0);
-        this.trimEndBuffer.trimToSize();
+        this.trimEndLength = 0;
         super.close();
     }
 
     protected void flushBuffer() throws IOException {
-        final String buffer = trimEndBuffer.toString();
-        final int bufferLength = buffer.length();
-        super.write(buffer, 0, bufferLength);
-        charCount += bufferLength;
-        trimEndBuffer.setLength(0);
+        if (trimEndLength == 0) {
+            return;
+        }
+        
+        out.write(trimEndBuffer, 0, trimEndLength);
+        charCount += trimEndLength;
+        trimEndLength = 0;
+        if (trimEndBuffer.length > TRIM_END_BUFFER_SIZE) {
+            trimEndBuffer = new char[TRIM_END_BUFFER_SIZE];
+        }
+    }
+    
+    private void bufferTrimEnd(char c) {
+        if (trimEndLength == trimEndBuffer.length) {
+            trimEndBuffer = Arrays.copyOf(trimEndBuffer, trimEndLength * 2);
+        }
+        trimEndBuffer[trimEndLength++] = c;
+    }
+    
+    /**
+     * Same as {@link Character#isWhitespace(char)} with the common ASCII cases checked first
+     */
+    static boolean isWhitespace(char c) {
+        if (c <= ' ') {
+            return c == ' ' || (c >= '\t' && c <= '\r') || c >= '\u001C';
+        }
+        return c >= '\u0080' && Character.isWhitespace(c);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionCacheTest {
+    private File cacheDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        this.cacheDirectory = Files.createTempDirectory("compression-cache-test").toFile();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(this.cacheDirectory);
+    }
+
+    @Test
+    public void testMemoryHit() throws Exception {
+        final CompressionCache cache = new CompressionCache(1024, null, 0);
+        final CountingCompressor compressor = new CountingCompressor();
+
+        assertEquals("A", compress(cache, "a", "test", compressor));
+        assertEquals("A", compress(cache, "a", "test", compressor));
+        assertEquals(1, compressor.count);
+
+        //Different compressor settings must not share entries
+        assertEquals("A", compress(cache, "a", "other", compressor));
+        assertEquals(2, compressor.count);
+    }
+
+    @Test
+    public void testDiskHitAcrossInstances() throws Exception {
+        final CountingCompressor compressor = new CountingCompressor();
+
+        assertEquals("ABC", compress(new CompressionCache(0, this.cacheDirectory, 1024), "abc", "test", compressor));
+        assertEquals("ABC", compress(new CompressionCache(0, this.cacheDirectory, 1024), "abc", "test", compressor));
+        assertEquals(1, compressor.count);
+    }
+
+    @Test
+    public void testUnchangedOutputNotCached() throws Exception {
+        final CompressionCache cache = new CompressionCache(1024, this.cacheDirectory, 1024);
+        final CountingCompressor compressor = new CountingCompressor();
+
+        assertEquals("ABC", compress(cache, "ABC", "test", compressor));
+        assertEquals("ABC", compress(cache, "ABC", "test", compressor));
+        assertEquals(2, compressor.count);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final CompressionCache cache = new CompressionCache(8, this.cacheDirectory, 20);
+        final CountingCompressor compressor = new CountingCompressor();
+
+        for (final String input : new String[] { "aaaaa", "bbbbb", "ccccc", "ddddd", "eeeee" }) {
+            compress(cache, input, "test", compressor);
+        }
+        assertEquals(5, compressor.count);
+
+        long diskSize = 0;
+        for (final File entry : FileUtils.listFiles(this.cacheDirectory, null, true)) {
+            diskSize += entry.length();
+        }
+        assertTrue("Disk cache grew to " + diskSize, diskSize <= 20);
+
+        //Most recent entry is still in memory
+        compress(cache, "eeeee", "test", compressor);
+        assertEquals(5, compressor.count);
+    }
+
+    private static String compress(CompressionCache cache, String input, String compressorId, CountingCompressor compressor) throws IOException {
+        final StringWriter output = new StringWriter();
+        cache.compress(new StringReader(input), output, compressorId, compressor);
+        return output.toString();
+    }
+
+    private static class CountingCompressor implements CompressionCache.Compressor {
+        private int count = 0;
+
+        @Override
+        public void compress(Reader reader, Writer writer) throws IOException {
+            this.count++;
+            writer.write(IOUtils.toString(reader).toUpperCase());
+        }
+    }
+}
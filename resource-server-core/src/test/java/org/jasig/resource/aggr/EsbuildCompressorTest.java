@@ -24,6 +24,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
@@ -70,4 +71,44 @@ public class EsbuildCompressorTest {
 
         assertEquals("Invalid JS should fall back to uncompressed input", input, output.toString());
     }
+
+    @Test
+    public void testTempFileModeMatchesStreamingMode() throws Exception {
+        final String input = IOUtils.toString(
+                new ClassPathResource("skin-test1/a.js").getInputStream(), StandardCharsets.UTF_8);
+
+        final StringWriter streamed = new StringWriter();
+        EsbuildCompressor.compressJavaScript(new StringReader(input), streamed);
+
+        final StringWriter tempFiles = new StringWriter();
+        System.setProperty(EsbuildCompressor.TEMP_FILES_PROPERTY, "true");
+        try {
+            EsbuildCompressor.compressJavaScript(new StringReader(input), tempFiles);
+        }
+        finally {
+            System.clearProperty(EsbuildCompressor.TEMP_FILES_PROPERTY);
+        }
+
+        assertEquals(tempFiles.toString().trim(), streamed.toString().trim());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final String binary = EsbuildCompressor.getOrExtractBinary().toString();
+
+        //esbuild exits once stdin is closed, the watchdog firing afterwards is not a timeout
+        final Process finished = new ProcessBuilder(binary).start();
+        finished.getOutputStream().close();
+        IOUtils.toString(finished.getInputStream(), StandardCharsets.UTF_8);
+        assertEquals(0, finished.waitFor());
+        final EsbuildCompressor.Timeout finishedTimeout = EsbuildCompressor.scheduleTimeout(finished, 0, TimeUnit.MILLISECONDS);
+
+        //esbuild waits for the rest of stdin until the watchdog destroys it, the watchdog has run both timeouts by then
+        final Process hung = new ProcessBuilder(binary).start();
+        final EsbuildCompressor.Timeout hungTimeout = EsbuildCompressor.scheduleTimeout(hung, 0, TimeUnit.MILLISECONDS);
+        assertTrue(hung.waitFor() != 0);
+
+        assertTrue(hungTimeout.cancel());
+        assertFalse(finishedTimeout.cancel());
+    }
 }
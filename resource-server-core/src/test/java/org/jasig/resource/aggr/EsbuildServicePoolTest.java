@@ -0,0 +1,88 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+public class EsbuildServicePoolTest {
+    private EsbuildServicePool servicePool;
+
+    @Before
+    public void setup() {
+        this.servicePool = new EsbuildServicePool(2);
+    }
+
+    @After
+    public void teardown() {
+        this.servicePool.close();
+    }
+
+    @Test
+    public void testJavaScriptMatchesOneShot() throws Exception {
+        final String input = IOUtils.toString(
+                new ClassPathResource("skin-test1/a.js").getInputStream(), StandardCharsets.UTF_8);
+
+        final StringWriter expected = new StringWriter();
+        EsbuildCompressor.compressJavaScript(new StringReader(input), expected);
+
+        //Run more than once to make sure the process is reused correctly
+        for (int i = 0; i < 3; i++) {
+            final StringWriter output = new StringWriter();
+            this.servicePool.compressJavaScript(new StringReader(input), output);
+            assertEquals(expected.toString().trim(), output.toString().trim());
+        }
+    }
+
+    @Test
+    public void testCssMatchesOneShot() throws Exception {
+        final String input = IOUtils.toString(
+                new ClassPathResource("skin-test1/a.css").getInputStream(), StandardCharsets.UTF_8);
+
+        final StringWriter expected = new StringWriter();
+        EsbuildCompressor.compressCss(new StringReader(input), expected);
+
+        final StringWriter output = new StringWriter();
+        this.servicePool.compressCss(new StringReader(input), output);
+        assertEquals(expected.toString().trim(), output.toString().trim());
+    }
+
+    @Test
+    public void testInvalidJsFallsBackToInput() throws Exception {
+        final String input = "this is not valid javascript }{}{";
+
+        final StringWriter output = new StringWriter();
+        this.servicePool.compressJavaScript(new StringReader(input), output);
+        assertEquals("Invalid JS should fall back to uncompressed input", input, output.toString());
+
+        //A failed transform must not poison the process
+        final StringWriter validOutput = new StringWriter();
+        this.servicePool.compressJavaScript(new StringReader("var a = 1;"), validOutput);
+        assertEquals("var a=1;", validOutput.toString().trim());
+    }
+}
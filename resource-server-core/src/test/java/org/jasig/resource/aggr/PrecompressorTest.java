@@ -0,0 +1,96 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrecompressorTest {
+    private File testDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        this.testDirectory = Files.createTempDirectory("precompressor-test").toFile();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(this.testDirectory);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        final File aggregate = new File(this.testDirectory, "abc.aggr.min.js");
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("var value").append(i).append(" = compute(value);\n");
+        }
+        FileUtils.write(aggregate, content, "UTF-8");
+
+        final Precompressor gzip = Precompressor.gzip(9);
+        assertTrue(gzip.isAvailable());
+        assertTrue(gzip.compress(aggregate));
+
+        final File compressed = gzip.getCompressedFile(aggregate);
+        assertEquals("abc.aggr.min.js.gz", compressed.getName());
+        assertTrue(compressed.length() < aggregate.length());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed.toPath()))) {
+            assertArrayEquals(FileUtils.readFileToByteArray(aggregate), IOUtils.toByteArray(in));
+        }
+
+        // no temp files left behind
+        assertEquals(2, this.testDirectory.list().length);
+    }
+
+    @Test
+    public void testNotSmaller() throws Exception {
+        final File aggregate = new File(this.testDirectory, "abc.aggr.min.css");
+        FileUtils.write(aggregate, "a{}", "UTF-8");
+
+        final Precompressor gzip = Precompressor.gzip(1);
+        assertFalse(gzip.compress(aggregate));
+        assertFalse(gzip.getCompressedFile(aggregate).exists());
+        assertEquals(1, this.testDirectory.list().length);
+    }
+
+    @Test
+    public void testBrotliUnavailable() throws Exception {
+        final Precompressor brotli = Precompressor.brotli(11, new File(this.testDirectory, "no-such-brotli").getPath());
+        assertEquals("br", brotli.getEncoding());
+        assertFalse(brotli.isAvailable());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        Precompressor.gzip(10);
+    }
+}
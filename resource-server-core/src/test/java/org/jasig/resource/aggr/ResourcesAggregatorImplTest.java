@@ -21,14 +21,31 @@
  */
 package org.jasig.resource.aggr;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.custommonkey.xmlunit.Diff;
+import org.jasig.resource.aggr.ResourcesAggregatorImpl.AggregatorCallback;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.aggr.om.BasicInclude;
+import org.jasig.resourceserver.aggr.om.Included;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.junit.After;
 import org.junit.Assert;
@@ -108,6 +125,202 @@ public class ResourcesAggregatorImplTest {
         assertTrue(d.toString(), d.similar());
 	}
 
+	@Test
+	public void testComplexParallel() throws Exception {
+		String tempPath = getTestOutputRoot() + "/skin-complex/superskin";
+
+		File outputDirectory = new File(tempPath);
+		outputDirectory.mkdirs();
+		Assert.assertTrue(outputDirectory.exists());
+
+		File skinXml = new ClassPathResource("skin-complex/superskin/skin.xml").getFile();
+		Assert.assertTrue(skinXml.exists());
+
+		ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl();
+		impl.setAggregationThreads(4);
+		try {
+		    impl.aggregate(skinXml, outputDirectory);
+		}
+		finally {
+		    impl.close();
+		}
+
+		// same checksum file names as the serial aggregation
+        Diff d = new Diff(
+                new FileReader(new ClassPathResource("skin-complex/superskin/skin.aggr.xml").getFile()),
+                new FileReader(new File(outputDirectory, "skin.aggr.xml")));
+        assertTrue(d.toString(), d.similar());
+	}
+
+	@Test
+	public void testConcurrentSkins() throws Exception {
+		final String[] skins = { "skin-test1", "skin-complex/superskin", "skin-test1", "skin-complex/superskin" };
+
+		final ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl();
+		final ExecutorService executorService = Executors.newFixedThreadPool(skins.length);
+		try {
+		    final List<Future<File>> results = new ArrayList<Future<File>>();
+		    for (int i = 0; i < skins.length; i++) {
+		        final File skinXml = new ClassPathResource(skins[i] + "/skin.xml").getFile();
+		        final File outputDirectory = new File(getTestOutputRoot() + "/concurrent-" + i + "/" + skins[i]);
+		        outputDirectory.mkdirs();
+		        results.add(executorService.submit(() -> {
+		            impl.aggregate(skinXml, outputDirectory);
+		            return outputDirectory;
+		        }));
+		    }
+
+		    for (int i = 0; i < skins.length; i++) {
+		        Diff d = new Diff(
+		                new FileReader(new ClassPathResource(skins[i] + "/skin.aggr.xml").getFile()),
+		                new FileReader(new File(results.get(i).get(), "skin.aggr.xml")));
+		        assertTrue(d.toString(), d.similar());
+		    }
+		}
+		finally {
+		    executorService.shutdownNow();
+		    impl.close();
+		}
+	}
+
+	@Test
+	public void testIncremental() throws Exception {
+		final File sourceDirectory = new File(getTestOutputRoot() + "/skin-test1-src");
+		FileUtils.copyDirectory(new ClassPathResource("skin-test1").getFile(), sourceDirectory);
+		final File skinXml = new File(sourceDirectory, "skin.xml");
+
+		final File outputDirectory = new File(getTestOutputRoot() + "/skin-test1");
+		outputDirectory.mkdirs();
+
+		final AtomicInteger aggregateCount = new AtomicInteger();
+		final ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl() {
+		    @Override
+		    <T extends BasicInclude> T aggregateList(MessageDigest digest, Deque<T> elements, 
+		            List<File> skinDirectories, SourceDirectoryIndex sourceDirectoryIndex, File outputRoot, 
+		            File alternateOutput, String extension, AggregatorCallback<T> callback, 
+		            Map<T, Future<String>> compressedElements) throws IOException {
+		        aggregateCount.incrementAndGet();
+		        return super.aggregateList(digest, elements, skinDirectories, sourceDirectoryIndex, outputRoot, 
+		                alternateOutput, extension, callback, compressedElements);
+		    }
+		};
+		impl.setIncremental(true);
+
+		impl.aggregate(skinXml, outputDirectory);
+		assertEquals(2, aggregateCount.get());
+		assertTrue(new File(outputDirectory, "skin.aggr.manifest").isFile());
+
+		// nothing changed, both aggregates are reused
+		impl.aggregate(skinXml, outputDirectory);
+		assertEquals(2, aggregateCount.get());
+		Diff d = new Diff(
+		        new FileReader(new ClassPathResource("skin-test1/skin.aggr.xml").getFile()),
+		        new FileReader(new File(outputDirectory, "skin.aggr.xml")));
+		assertTrue(d.toString(), d.similar());
+
+		// only the JavaScript group is aggregated again
+		FileUtils.write(new File(sourceDirectory, "b.js"), "\nvar incremental = true;\n", "UTF-8", true);
+		impl.aggregate(skinXml, outputDirectory);
+		assertEquals(3, aggregateCount.get());
+		d = new Diff(
+		        new FileReader(new ClassPathResource("skin-test1/skin.aggr.xml").getFile()),
+		        new FileReader(new File(outputDirectory, "skin.aggr.xml")));
+		assertFalse(d.toString(), d.similar());
+	}
+
+	@Test
+	public void testUpToDate() throws Exception {
+		final File sourceDirectory = new File(getTestOutputRoot() + "/skin-test1-src");
+		FileUtils.copyDirectory(new ClassPathResource("skin-test1").getFile(), sourceDirectory);
+
+		final File outputDirectory = new File(getTestOutputRoot() + "/skin-test1");
+		outputDirectory.mkdirs();
+
+		final AggregationRequest request = new AggregationRequest()
+		    .setResourcesXml(new File(sourceDirectory, "skin.xml"))
+		    .setOutputBaseDirectory(outputDirectory);
+
+		final ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl();
+		assertFalse(impl.isUpToDate(request));
+
+		impl.setIncremental(true);
+		assertFalse(impl.isUpToDate(request));
+		impl.aggregate(request);
+		assertTrue(impl.isUpToDate(request));
+
+		// a changed source file
+		final File bJs = new File(sourceDirectory, "b.js");
+		FileUtils.write(bJs, "\nvar upToDate = false;\n", "UTF-8", true);
+		bJs.setLastModified(bJs.lastModified() + 2000);
+		assertFalse(impl.isUpToDate(request));
+		impl.aggregate(request);
+		assertTrue(impl.isUpToDate(request));
+
+		// a changed source file with the same size and last modified time
+		final long lastModified = bJs.lastModified();
+		FileUtils.write(bJs, FileUtils.readFileToString(bJs, "UTF-8").replace("upToDate = false", "upToDate = true!"), "UTF-8");
+		bJs.setLastModified(lastModified);
+		assertFalse(impl.isUpToDate(request));
+		impl.aggregate(request);
+		assertTrue(impl.isUpToDate(request));
+
+		// a deleted aggregate
+		for (final File aggregate : outputDirectory.listFiles()) {
+		    if (aggregate.getName().endsWith(".aggr.min.css")) {
+		        aggregate.delete();
+		    }
+		}
+		assertFalse(impl.isUpToDate(request));
+	}
+
+	@Test
+	public void testCompiledResources() throws Exception {
+		final File outputDirectory = new File(getTestOutputRoot() + "/skin-test1-compiled");
+		outputDirectory.mkdirs();
+
+		final ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl();
+		impl.aggregate(new ClassPathResource("skin-test1/skin.xml").getFile(), outputDirectory);
+
+		final File aggregatedXml = new File(outputDirectory, "skin.aggr.xml");
+		final File compiledFile = new File(outputDirectory, "skin.aggr.bin");
+		assertTrue(compiledFile.isFile());
+
+		final ResourcesDaoImpl xmlResourcesDao = new ResourcesDaoImpl();
+		xmlResourcesDao.setCompiledResources(false);
+		assertEquals(xmlResourcesDao.readResources(aggregatedXml, Included.AGGREGATED), 
+		        new ResourcesDaoImpl().readResources(aggregatedXml, Included.AGGREGATED));
+
+		impl.setCompiledResources(false);
+		impl.aggregate(new ClassPathResource("skin-test1/skin.xml").getFile(), outputDirectory);
+		assertFalse(compiledFile.exists());
+	}
+
+	@Test
+	public void testPrecompressed() throws Exception {
+		final File outputDirectory = new File(getTestOutputRoot() + "/skin-test1-precompressed");
+		outputDirectory.mkdirs();
+
+		final ResourcesAggregatorImpl impl = new ResourcesAggregatorImpl();
+		impl.setPrecompressors(Arrays.asList(Precompressor.gzip(9), Precompressor.brotli(11, "no-such-brotli")));
+		impl.aggregate(new ClassPathResource("skin-test1/skin.xml").getFile(), outputDirectory);
+
+		final String aggregatedXml = FileUtils.readFileToString(new File(outputDirectory, "skin.aggr.xml"), "UTF-8");
+		int precompressed = 0;
+		for (final File aggregate : outputDirectory.listFiles()) {
+		    final String name = aggregate.getName();
+		    if (name.endsWith(".aggr.min.js") || name.endsWith(".aggr.min.css")) {
+		        final File gz = new File(aggregate.getPath() + ".gz");
+		        if (gz.exists()) {
+		            precompressed++;
+		            assertTrue(gz.length() < aggregate.length());
+		        }
+		        assertFalse(new File(aggregate.getPath() + ".br").exists());
+		    }
+		}
+		assertTrue(precompressed > 0);
+		assertEquals(aggregatedXml, precompressed, StringUtils.countMatches(aggregatedXml, "encodings=\"gzip\""));
+	}
+
     @Test
     public void testIncludeOverlay() throws Exception {
         String tempPath = getTestOutputRoot() + "/skin-test-incl-overlay";
@@ -0,0 +1,100 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+public class ResourcesWatcherTest {
+    private File testDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        this.testDirectory = Files.createTempDirectory("resources-watcher-test").toFile();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteDirectory(this.testDirectory);
+    }
+
+    @Test
+    public void testChangedFileIsAggregated() throws Exception {
+        final File sourceDirectory = new File(this.testDirectory, "src");
+        FileUtils.copyDirectory(new ClassPathResource("skin-test1").getFile(), sourceDirectory);
+        final File outputDirectory = new File(this.testDirectory, "out");
+
+        final AggregationRequest request = new AggregationRequest()
+            .setResourcesXml(new File(sourceDirectory, "skin.xml"))
+            .setOutputBaseDirectory(outputDirectory);
+        final File aggregatedXml = new File(outputDirectory, "skin.aggr.xml");
+
+        final ResourcesAggregatorImpl aggregator = new ResourcesAggregatorImpl();
+        final ResourcesWatcher watcher = new ResourcesWatcher(null, aggregator, Collections.singleton(request));
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> watching = executorService.submit(() -> {
+                watcher.watch();
+                return null;
+            });
+
+            // initial aggregation
+            final String initial = waitForChange(aggregatedXml, null);
+
+            FileUtils.write(new File(sourceDirectory, "b.js"), "\nvar watched = true;\n", "UTF-8", true);
+            final String changed = waitForChange(aggregatedXml, initial);
+            assertTrue(changed, changed.contains(".aggr.min.css"));
+
+            watcher.close();
+            watching.get(10, TimeUnit.SECONDS);
+        }
+        finally {
+            watcher.close();
+            executorService.shutdownNow();
+            aggregator.close();
+        }
+    }
+
+    private static String waitForChange(File file, String previous) throws Exception {
+        final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (System.currentTimeMillis() < end) {
+            if (file.isFile()) {
+                final String content = FileUtils.readFileToString(file, "UTF-8");
+                if (!content.equals(previous)) {
+                    return content;
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Timed out waiting for " + file + " to change");
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+public class SourceDirectoryIndexTest {
+    @Test
+    public void testIndex() throws Exception {
+        final File skinDirectory = new ClassPathResource("skin-test1").getFile();
+        final File overlayDirectory = new ClassPathResource("skin-test-incl-overlay/overlay").getFile();
+        final File missingDirectory = new File(skinDirectory, "does-not-exist");
+
+        final SourceDirectoryIndex index = SourceDirectoryIndex.build(Arrays.asList(skinDirectory, missingDirectory, overlayDirectory));
+
+        final SourceDirectoryIndex.Entry entry = index.getEntry(0, "a.js");
+        assertNotNull(entry);
+        final File aJs = new File(skinDirectory, "a.js");
+        assertEquals(aJs.length(), entry.size);
+        assertEquals(aJs.lastModified(), entry.lastModified);
+
+        assertNotNull(index.getEntry(0, "./a.js"));
+        assertNull(index.getEntry(1, "a.js"));
+        assertNull(index.getEntry(2, "a.js"));
+        assertNotNull(index.getEntry(2, "overlay.css"));
+        assertNull(index.getEntry(0, "../skin-test1/a.js"));
+
+        assertEquals(Collections.singletonList(new File(skinDirectory, "a.js")), index.findSimilar("A.JS"));
+    }
+
+    @Test
+    public void testFindFile() throws Exception {
+        final File skinDirectory = new ClassPathResource("skin-test1").getFile();
+        final File overlayDirectory = new ClassPathResource("skin-test-incl-overlay/overlay").getFile();
+        final List<File> sourceDirectories = Arrays.asList(skinDirectory, overlayDirectory);
+        final SourceDirectoryIndex index = SourceDirectoryIndex.build(sourceDirectories);
+
+        final ResourcesAggregatorImpl aggregator = new ResourcesAggregatorImpl();
+        assertEquals(new File(skinDirectory, "b.css"), aggregator.findFile(sourceDirectories, index, "b.css"));
+        assertEquals(new File(overlayDirectory, "overlay.js"), aggregator.findFile(sourceDirectories, index, "overlay.js"));
+        assertEquals(new File(overlayDirectory, "overlay.js"), aggregator.findFile(sourceDirectories, "overlay.js"));
+
+        // paths outside of the source directories are not indexed but still resolved
+        assertEquals(new File(overlayDirectory, "../skin.xml"), aggregator.findFile(sourceDirectories, index, "../skin.xml"));
+
+        try {
+            aggregator.findFile(sourceDirectories, index, "B.CSS");
+            if (!new File(skinDirectory, "B.CSS").exists()) {
+                throw new AssertionError("B.CSS should not be found on a case sensitive file system");
+            }
+        }
+        catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("b.css"));
+        }
+    }
+}
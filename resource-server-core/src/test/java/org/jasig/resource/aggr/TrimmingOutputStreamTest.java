@@ -0,0 +1,112 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class TrimmingOutputStreamTest {
+    @Test
+    public void testTrimmingBytes() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(output, StandardCharsets.UTF_8);
+        
+        trimmingStream.write(bytes(" start "));
+        trimmingStream.write(bytes("  "));
+        trimmingStream.write(bytes(" mid "));
+        trimmingStream.write(' ');
+        trimmingStream.write('-');
+        trimmingStream.write(' ');
+        trimmingStream.write(bytes(" dle "));
+        trimmingStream.write(bytes("  "));
+        trimmingStream.write(bytes(" end "));
+        trimmingStream.close();
+        
+        final String expected = "start    mid  -  dle    end";
+        assertEquals(expected, output.toString("UTF-8"));
+        assertEquals(expected.length(), trimmingStream.getCharCount());
+    }
+    
+    @Test
+    public void testTrimmingShortWrites() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(output, StandardCharsets.UTF_8);
+        
+        trimmingStream.write(bytes("\n"));
+        trimmingStream.write(bytes("x"));
+        trimmingStream.write(bytes(" ab"));
+        trimmingStream.write(bytes("\r\n"));
+        trimmingStream.close();
+        
+        assertEquals("x ab", output.toString("UTF-8"));
+        assertEquals(4, trimmingStream.getCharCount());
+    }
+    
+    @Test
+    public void testTrimmingSingleBytes() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(output, StandardCharsets.UTF_8);
+        
+        final String expected = "a \t b\n\u20ac";
+        for (final byte b : bytes(" \n" + expected + " \r\n")) {
+            trimmingStream.write(b);
+        }
+        trimmingStream.close();
+        
+        assertEquals(expected, output.toString("UTF-8"));
+        assertEquals(expected.length(), trimmingStream.getCharCount());
+    }
+    
+    @Test
+    public void testUtf8CharCount() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final TrimmingOutputStream trimmingStream = new TrimmingOutputStream(output, StandardCharsets.UTF_8);
+        
+        final String expected = "caf\u00e9 \u20ac \ud83d\ude00";
+        final Writer writer = new OutputStreamWriter(trimmingStream, StandardCharsets.UTF_8);
+        writer.write("\t" + expected + "\n");
+        writer.close();
+        
+        assertEquals(expected, output.toString("UTF-8"));
+        assertEquals(expected.length(), trimmingStream.getCharCount());
+    }
+    
+    @Test
+    public void testIsSupported() {
+        assertTrue(TrimmingOutputStream.isSupported(StandardCharsets.UTF_8));
+        assertTrue(TrimmingOutputStream.isSupported(StandardCharsets.ISO_8859_1));
+        assertTrue(TrimmingOutputStream.isSupported(StandardCharsets.US_ASCII));
+        assertFalse(TrimmingOutputStream.isSupported(StandardCharsets.UTF_16));
+        assertFalse(TrimmingOutputStream.isSupported(Charset.forName("IBM037")));
+    }
+    
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -81,4 +81,20 @@ public class TrimmingWriterTest {
         assertEquals(expected, output.toString());
         assertEquals(expected.length(), trimmingWriter.getCharCount());
     }
+    
+    @Test
+    public void testTrimmingShortWrites() throws IOException {
+        final StringWriter output = new StringWriter();
+        final TrimmingWriter trimmingWriter = new TrimmingWriter(output);
+        
+        trimmingWriter.write("\n");
+        trimmingWriter.write("x");
+        trimmingWriter.write(" ab".toCharArray());
+        trimmingWriter.write("\u3000\r\n");
+        trimmingWriter.close();
+        
+        final String expected = "x ab";
+        assertEquals(expected, output.toString());
+        assertEquals(expected.length(), trimmingWriter.getCharCount());
+    }
 }
@@ -20,11 +20,14 @@ package org.jasig.resource.aggr.mojo;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.logging.Log;
 import org.jasig.resource.aggr.AggregationRequest;
-import org.jasig.resource.aggr.ResourcesAggregator;
+import org.jasig.resource.aggr.CompressionCache;
+import org.jasig.resource.aggr.Precompressor;
 import org.jasig.resource.aggr.ResourcesAggregatorImpl;
 
 /**
@@ -59,21 +62,135 @@ public abstract class AbstractSkinResourcesAggregatorMojo extends AbstractMojo {
      * @parameter default-value="false"
      */
     protected boolean useGeneratedSources = false;
+    /**
+     * Number of long-lived esbuild processes used to compress resources. 0 (the default) starts a new esbuild
+     * process for every resource, set it to 1 or more to opt in to the long-lived esbuild service.
+     * 
+     * @parameter default-value="0"
+     */
+    protected int esbuildProcesses = 0;
+    /**
+     * Number of threads used to compress the resources of a skin, 1 compresses them one at a time. The output is
+     * the same regardless of this setting.
+     * 
+     * @parameter default-value="1"
+     */
+    protected int aggregationThreads = 1;
+    /**
+     * Reuse aggregates whose source files have not changed since the previous build, tracked in a manifest
+     * written next to the aggregated skin xml. Skins where nothing changed are skipped entirely.
+     * 
+     * @parameter default-value="true"
+     */
+    protected boolean incremental = true;
+    /**
+     * Set to false to compress every resource instead of reusing previously compressed output.
+     * 
+     * @parameter default-value="true"
+     */
+    protected boolean compressionCache = true;
+    /**
+     * Directory the compressed output of resources is cached in, defaults to a directory in the build output so it
+     * is removed by a clean build. Set it to a location outside of the project to share the cache between projects
+     * and concurrent builds. If not set only the in-memory cache is used.
+     * 
+     * @parameter default-value="${project.build.directory}/resource-server-cache"
+     */
+    protected File compressionCacheDirectory;
+    /**
+     * Maximum number of characters of compressed output to keep in memory.
+     * 
+     * @parameter default-value="16777216"
+     */
+    protected long compressionCacheMemorySize = 16 * 1024 * 1024;
+    /**
+     * Maximum number of bytes to keep in the compression cache directory, the least recently used entries are
+     * removed when it grows past this.
+     * 
+     * @parameter default-value="268435456"
+     */
+    protected long compressionCacheDiskSize = 256 * 1024 * 1024;
+    /**
+     * Write a gzip compressed copy of each aggregate next to it, named with .gz appended, so it can be served
+     * without compressing it per request.
+     * 
+     * @parameter default-value="false"
+     */
+    protected boolean precompressGzip = false;
+    /**
+     * gzip compression level of the pre-compressed copies, 1 (fastest) to 9 (smallest).
+     * 
+     * @parameter default-value="9"
+     */
+    protected int gzipLevel = 9;
+    /**
+     * Write a brotli compressed copy of each aggregate next to it, named with .br appended. Requires the brotli
+     * command line tool, no copies are written if it cannot be run.
+     * 
+     * @parameter default-value="false"
+     */
+    protected boolean precompressBrotli = false;
+    /**
+     * brotli compression level of the pre-compressed copies, 0 (fastest) to 11 (smallest).
+     * 
+     * @parameter default-value="11"
+     */
+    protected int brotliLevel = 11;
+    /**
+     * Name or path of the brotli executable.
+     * 
+     * @parameter default-value="brotli"
+     */
+    protected String brotliExecutable = "brotli";
+    /**
+     * Write a compiled binary descriptor next to each aggregated skin xml that the webapp loads instead of
+     * parsing the XML.
+     * 
+     * @parameter default-value="true"
+     */
+    protected boolean compiledResources = true;
     
-    protected ResourcesAggregator createResourcesAggregator() {
+    protected ResourcesAggregatorImpl createResourcesAggregator() {
         final Log log = this.getLog();
         final MavenLoggerToSlf4j logWrapper = new MavenLoggerToSlf4j(log, ResourcesAggregatorImpl.class.getName());
 
         final ResourcesAggregatorImpl aggr = new ResourcesAggregatorImpl(logWrapper, this.encoding);
         
         aggr.setDigestAlgorithm(digestAlgorithm);
+        aggr.setEsbuildProcesses(esbuildProcesses);
+        aggr.setAggregationThreads(aggregationThreads);
+        aggr.setIncremental(incremental);
+        if (compressionCache) {
+            aggr.setCompressionCache(new CompressionCache(compressionCacheMemorySize, compressionCacheDirectory, compressionCacheDiskSize));
+        }
+        final List<Precompressor> precompressors = new ArrayList<Precompressor>(2);
+        if (precompressGzip) {
+            precompressors.add(Precompressor.gzip(gzipLevel));
+        }
+        if (precompressBrotli) {
+            precompressors.add(Precompressor.brotli(brotliLevel, brotliExecutable));
+        }
+        aggr.setPrecompressors(precompressors);
+        aggr.setCompiledResources(compiledResources);
         
         return aggr;
     }
 
-    protected void doAggregation(ResourcesAggregator aggr, File skinConfigurationFile, File skinOutputDirectory) throws IOException {
+    protected void doAggregation(ResourcesAggregatorImpl aggr, File skinConfigurationFile, File skinOutputDirectory) throws IOException {
         final Log log = this.getLog();
         
+        final AggregationRequest aggregationRequest = this.createAggregationRequest(skinConfigurationFile, skinOutputDirectory);
+        
+        if (aggr.isUpToDate(aggregationRequest)) {
+            log.info("Skipping " + skinConfigurationFile + ", aggregated resources are up to date");
+            return;
+        }
+        
+        log.debug("Aggregating: " + aggregationRequest);
+        aggr.aggregate(aggregationRequest);
+    }
+
+    protected AggregationRequest createAggregationRequest(File skinConfigurationFile, File skinOutputDirectory) {
         final AggregationRequest aggregationRequest = new AggregationRequest();
         aggregationRequest
             .setResourcesXml(skinConfigurationFile)
@@ -88,7 +205,6 @@ public abstract class AbstractSkinResourcesAggregatorMojo extends AbstractMojo {
             aggregationRequest.addAdditionalSourceDirectory(skinOutputDirectory);
         }
         
-        log.debug("Aggregating: " + aggregationRequest);
-        aggr.aggregate(aggregationRequest);
+        return aggregationRequest;
     }
 }
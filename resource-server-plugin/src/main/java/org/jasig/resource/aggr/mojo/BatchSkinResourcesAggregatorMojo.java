@@ -23,8 +23,16 @@ package org.jasig.resource.aggr.mojo;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -32,6 +40,7 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.util.DirectoryScanner;
 import org.jasig.resource.aggr.ResourcesAggregator;
+import org.jasig.resource.aggr.ResourcesAggregatorImpl;
 import org.jasig.resourceserver.aggr.AggregationException;
 
 /**
@@ -41,6 +50,7 @@ import org.jasig.resourceserver.aggr.AggregationException;
  * file you wish to aggregate.
  *
  * @goal batch-aggregate
+ * @threadSafe
  * @author Nicholas Blair, npblair@wisc.edu
  *
  */
@@ -71,6 +81,14 @@ public class BatchSkinResourcesAggregatorMojo extends AbstractSkinResourcesAggre
      */
     private String[] excludes;
     
+    /**
+     * Number of skins to aggregate at the same time. Failures are collected and reported after all skins
+     * have been processed.
+     * 
+     * @parameter default-value="1"
+     */
+    private int threads = 1;
+    
     /* (non-Javadoc)
      * @see org.apache.maven.plugin.Mojo#execute()
      */
@@ -78,25 +96,67 @@ public class BatchSkinResourcesAggregatorMojo extends AbstractSkinResourcesAggre
     public void execute() throws MojoExecutionException, MojoFailureException {
         final Log log = this.getLog();
 
-        try {
-            final ResourcesAggregator aggr = this.createResourcesAggregator();
-            
+        final Map<String, Exception> failures = new ConcurrentSkipListMap<String, Exception>();
+        try (final ResourcesAggregatorImpl aggr = this.createResourcesAggregator()) {
             final Set<String> skinConfigurationFiles = this.findSkinConfigurationFiles();
-            for (final String fileName : skinConfigurationFiles) {
-                log.info("Aggregating: " + fileName);
-                final File skinConfigurationFile = new File(this.skinSourceDirectory, fileName);
-                final File skinOutputDirectory = new File(this.baseOutputDirectory, fileName).getParentFile();
-                this.doAggregation(aggr, skinConfigurationFile, skinOutputDirectory);
-            }
             
-        } catch (AggregationException e) {
-            throw new MojoExecutionException("aggregation failed", e);
-        } catch (IOException e) {
-            throw new MojoExecutionException("IOException occurred", e);
+            if (threads <= 1 || skinConfigurationFiles.size() <= 1) {
+                for (final String fileName : skinConfigurationFiles) {
+                    this.aggregateSkin(aggr, fileName, failures);
+                }
+            }
+            else {
+                final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threads, skinConfigurationFiles.size()));
+                try {
+                    final List<Future<?>> futures = new ArrayList<Future<?>>(skinConfigurationFiles.size());
+                    for (final String fileName : skinConfigurationFiles) {
+                        futures.add(executorService.submit(() -> this.aggregateSkin(aggr, fileName, failures)));
+                    }
+                    for (final Future<?> future : futures) {
+                        future.get();
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted while aggregating skins", e);
+                }
+                catch (ExecutionException e) {
+                    throw new MojoExecutionException("aggregation failed", e.getCause());
+                }
+                finally {
+                    executorService.shutdownNow();
+                }
+            }
         }
+        
+        if (!failures.isEmpty()) {
+            for (final Map.Entry<String, Exception> failure : failures.entrySet()) {
+                log.error("Failed to aggregate: " + failure.getKey(), failure.getValue());
+            }
+            throw new MojoExecutionException("aggregation failed for " + failures.size() + " skin(s): " + failures.keySet(), 
+                    failures.values().iterator().next());
+        }
+    }
+
+    private void aggregateSkin(ResourcesAggregatorImpl aggr, String fileName, Map<String, Exception> failures) {
+        this.getLog().info("Aggregating: " + fileName);
+        try {
+            this.doAggregation(aggr, this.getSkinConfigurationFile(fileName), this.getSkinOutputDirectory(fileName));
+        }
+        catch (AggregationException | IOException e) {
+            failures.put(fileName, e);
+        }
+    }
+
+    protected File getSkinConfigurationFile(String fileName) {
+        return new File(this.skinSourceDirectory, fileName);
+    }
+
+    protected File getSkinOutputDirectory(String fileName) {
+        return new File(this.baseOutputDirectory, fileName).getParentFile();
     }
 
-    private Set<String> findSkinConfigurationFiles() {
+    protected Set<String> findSkinConfigurationFiles() {
         final DirectoryScanner directoryScanner = new DirectoryScanner();
         directoryScanner.setIncludes(includes);
         directoryScanner.setExcludes(excludes);
@@ -28,6 +28,7 @@ import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.jasig.resource.aggr.ResourcesAggregator;
+import org.jasig.resource.aggr.ResourcesAggregatorImpl;
 import org.jasig.resourceserver.aggr.AggregationException;
 
 /**
@@ -37,6 +38,7 @@ import org.jasig.resourceserver.aggr.AggregationException;
  * file you wish to aggregate.
  *
  * @goal aggregate
+ * @threadSafe
  * @author Nicholas Blair, npblair@wisc.edu
  *
  */
@@ -62,9 +64,7 @@ public class SkinResourcesAggregatorMojo extends AbstractSkinResourcesAggregator
 	 */
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException {
-	    try {
-			final ResourcesAggregator aggr = this.createResourcesAggregator();
-			
+	    try (final ResourcesAggregatorImpl aggr = this.createResourcesAggregator()) {
 			final File fullOutputDirectory = new File(baseOutputDirectory, skinOutputDirectory);
 			this.doAggregation(aggr, skinConfigurationFile, fullOutputDirectory);
 		} catch (AggregationException e) {
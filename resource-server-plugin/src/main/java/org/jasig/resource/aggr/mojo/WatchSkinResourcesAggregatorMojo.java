@@ -0,0 +1,65 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resource.aggr.mojo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.jasig.resource.aggr.AggregationRequest;
+import org.jasig.resource.aggr.ResourcesAggregatorImpl;
+import org.jasig.resource.aggr.ResourcesWatcher;
+
+/**
+ * Aggregates the same skins as batch-aggregate then keeps running, aggregating a skin again whenever one of
+ * its files changes. Only the aggregates containing changed files are regenerated. Stop it with Ctrl-C.
+ *
+ * @goal watch
+ * @requiresDirectInvocation true
+ */
+public class WatchSkinResourcesAggregatorMojo extends BatchSkinResourcesAggregatorMojo {
+    /* (non-Javadoc)
+     * @see org.apache.maven.plugin.Mojo#execute()
+     */
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        this.incremental = true;
+
+        try (final ResourcesAggregatorImpl aggr = this.createResourcesAggregator()) {
+            final List<AggregationRequest> aggregationRequests = new ArrayList<AggregationRequest>();
+            for (final String fileName : this.findSkinConfigurationFiles()) {
+                aggregationRequests.add(this.createAggregationRequest(
+                        this.getSkinConfigurationFile(fileName), this.getSkinOutputDirectory(fileName)));
+            }
+
+            final MavenLoggerToSlf4j logWrapper = new MavenLoggerToSlf4j(this.getLog(), ResourcesWatcher.class.getName());
+            try (final ResourcesWatcher watcher = new ResourcesWatcher(logWrapper, aggr, aggregationRequests)) {
+                watcher.watch();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e) {
+            throw new MojoExecutionException("IOException occurred", e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.utils.aggr;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Snapshot of the resources the resource server webapp serves under {@link #MANIFEST_PATH}, built with a single
+ * walk of {@link ServletContext#getResourcePaths(String)} so resolving a resource URL is an in-memory lookup
+ * instead of a cross context {@link ServletContext#getResource(String)} call.
+ * <p>
+ * The resource server's {@link ServletContext} is only weakly referenced so a snapshot does not keep an undeployed
+ * webapp in memory.
+ */
+final class ResourceServerManifest {
+    static final String MANIFEST_PATH = "/rs/";
+    
+    private static final ResourceServerManifest MISSING = new ResourceServerManifest(null, null, Collections.<String>emptySet());
+
+    private final Reference<ServletContext> resourceContext;
+    private final String contextPath;
+    private final Set<String> resources;
+    
+    private ResourceServerManifest(ServletContext resourceContext, String contextPath, Set<String> resources) {
+        this.resourceContext = resourceContext != null ? new WeakReference<ServletContext>(resourceContext) : null;
+        this.contextPath = contextPath;
+        this.resources = resources;
+    }
+
+    /**
+     * @param resourceContext The resource server's context, null if it is not deployed
+     */
+    static ResourceServerManifest build(ServletContext resourceContext) {
+        if (resourceContext == null) {
+            return MISSING;
+        }
+        
+        final Set<String> resources = new HashSet<String>();
+        addResourcePaths(resourceContext, MANIFEST_PATH, resources);
+        return new ResourceServerManifest(resourceContext, resourceContext.getContextPath(), resources);
+    }
+    
+    /**
+     * @return The resource server's context, null if it is not deployed
+     */
+    ServletContext getResourceContext() {
+        return this.resourceContext != null ? this.resourceContext.get() : null;
+    }
+    
+    /**
+     * @return true if the snapshot was built from the specified context
+     */
+    boolean isFor(ServletContext resourceContext) {
+        if (this.resourceContext == null) {
+            return resourceContext == null;
+        }
+        return resourceContext != null && this.resourceContext.get() == resourceContext;
+    }
+    
+    String getContextPath() {
+        return this.contextPath;
+    }
+    
+    int size() {
+        return this.resources.size();
+    }
+    
+    /**
+     * @return If the resource server has the resource, null if the resource is not covered by the manifest and must
+     * be looked up with {@link ServletContext#getResource(String)}. That is the case for resources outside of
+     * {@link #MANIFEST_PATH} and for every resource if the resource paths could not be listed.
+     */
+    Boolean contains(String resource) {
+        if (this.resources.isEmpty() || !resource.startsWith(MANIFEST_PATH)) {
+            return null;
+        }
+        
+        final String path = FilenameUtils.normalize(resource, true);
+        return path != null && this.resources.contains(path);
+    }
+    
+    /**
+     * @return true if URLs resolved with this manifest are still valid with the other manifest
+     */
+    boolean hasSameResources(ResourceServerManifest other) {
+        if (this.resourceContext == null || other.resourceContext == null) {
+            return this.resourceContext == other.resourceContext;
+        }
+        
+        //Direct lookups may have had different results if the resource paths could not be listed
+        return !this.resources.isEmpty() && this.contextPath.equals(other.contextPath) && this.resources.equals(other.resources);
+    }
+
+    private static void addResourcePaths(ServletContext resourceContext, String path, Set<String> resources) {
+        final Set<String> resourcePaths = resourceContext.getResourcePaths(path);
+        if (resourcePaths == null) {
+            return;
+        }
+        
+        for (final String resourcePath : resourcePaths) {
+            if (resourcePath.equals(path)) {
+                continue;
+            }
+            
+            if (resourcePath.endsWith("/")) {
+                addResourcePaths(resourceContext, resourcePath, resources);
+            }
+            else {
+                resources.add(resourcePath);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.utils.aggr;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.google.common.cache.AbstractCache.SimpleStatsCounter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+/**
+ * Cache used by {@link ResourcesElementsProviderImpl} that records hits, misses and the time spent generating the
+ * values put in it. Values are generated by the provider and put in the cache instead of being loaded by the cache
+ * so the statistics are tracked here, evictions are read from the backing Guava {@link Cache}.
+ */
+final class ResourcesCache<V> {
+    private final Map<String, V> map;
+    private final Cache<String, V> cache;
+    private final SimpleStatsCounter statsCounter = new SimpleStatsCounter();
+    
+    /**
+     * @param cache Guava cache to store values in, should record stats to track evictions
+     */
+    ResourcesCache(Cache<String, V> cache) {
+        this.map = cache.asMap();
+        this.cache = cache;
+    }
+    
+    /**
+     * @param map Thread-safe Map to store values in, evictions are not tracked
+     */
+    ResourcesCache(Map<String, V> map) {
+        this.map = map;
+        this.cache = null;
+    }
+    
+    /**
+     * Create a cache from a {@link CacheBuilderSpec}, the weigher is used if the spec sets a <code>maximumWeight</code>
+     */
+    static <V> ResourcesCache<V> fromSpec(String spec, Weigher<String, ? super V> weigher) {
+        final CacheBuilderSpec cacheBuilderSpec = CacheBuilderSpec.parse(spec);
+        final CacheBuilder<Object, Object> builder = CacheBuilder.from(cacheBuilderSpec).recordStats();
+        
+        //CacheBuilder rejects a weigher without a maximum weight
+        if (cacheBuilderSpec.toParsableString().contains("maximumWeight=")) {
+            return new ResourcesCache<V>(builder.weigher(weigher).<String, V>build());
+        }
+        return new ResourcesCache<V>(builder.<String, V>build());
+    }
+    
+    /**
+     * @return The cached value, null if there is no value
+     */
+    V get(String key) {
+        return this.get(key, null);
+    }
+    
+    /**
+     * @param valid Checks if the cached value can be used, an invalid value is counted as a miss
+     * @return The cached value, null if there is no valid value
+     */
+    V get(String key, Predicate<? super V> valid) {
+        final V value = this.map.get(key);
+        if (value == null || (valid != null && !valid.test(value))) {
+            this.statsCounter.recordMisses(1);
+            return null;
+        }
+        
+        this.statsCounter.recordHits(1);
+        return value;
+    }
+    
+    /**
+     * @param generateStart {@link System#nanoTime()} when generating the value started
+     */
+    void put(String key, V value, long generateStart) {
+        this.statsCounter.recordLoadSuccess(System.nanoTime() - generateStart);
+        this.map.put(key, value);
+    }
+    
+    void invalidate(String key) {
+        this.map.remove(key);
+    }
+    
+    void invalidateAll() {
+        this.map.clear();
+    }
+    
+    void invalidateIf(Predicate<? super String> keys) {
+        this.map.keySet().removeIf(keys);
+    }
+    
+    long size() {
+        return this.map.size();
+    }
+    
+    CacheStats stats() {
+        final CacheStats stats = this.statsCounter.snapshot();
+        if (this.cache == null) {
+            return stats;
+        }
+        
+        return new CacheStats(
+                stats.hitCount(), 
+                stats.missCount(), 
+                stats.loadSuccessCount(), 
+                stats.loadExceptionCount(), 
+                stats.totalLoadTime(), 
+                this.cache.stats().evictionCount());
+    }
+}
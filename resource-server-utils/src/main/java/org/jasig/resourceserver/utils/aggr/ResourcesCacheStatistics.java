@@ -0,0 +1,101 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.utils.aggr;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Point in time statistics of one of the {@link ResourcesElementsProviderImpl} caches
+ */
+public final class ResourcesCacheStatistics {
+    private final long size;
+    private final long hitCount;
+    private final long missCount;
+    private final long loadCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    
+    @ConstructorProperties({ "size", "hitCount", "missCount", "loadCount", "totalLoadTime", "evictionCount" })
+    public ResourcesCacheStatistics(long size, long hitCount, long missCount, long loadCount, long totalLoadTime, long evictionCount) {
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadCount = loadCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+    }
+    
+    ResourcesCacheStatistics(long size, CacheStats stats) {
+        this(size, stats.hitCount(), stats.missCount(), stats.loadCount(), TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()), stats.evictionCount());
+    }
+
+    /**
+     * Number of entries in the cache
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    public long getMissCount() {
+        return this.missCount;
+    }
+    
+    /**
+     * Ratio of lookups that were hits, 1.0 if there have been no lookups
+     */
+    public double getHitRate() {
+        final long requestCount = this.hitCount + this.missCount;
+        return requestCount == 0 ? 1.0 : (double) this.hitCount / requestCount;
+    }
+
+    /**
+     * Number of values generated after a miss
+     */
+    public long getLoadCount() {
+        return this.loadCount;
+    }
+
+    /**
+     * Milliseconds spent generating values after a miss
+     */
+    public long getTotalLoadTime() {
+        return this.totalLoadTime;
+    }
+
+    /**
+     * Entries evicted because of the size, weight or expiration limits of the cache
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourcesCacheStatistics [size=" + this.size + ", hitCount=" + this.hitCount + ", missCount="
+                + this.missCount + ", loadCount=" + this.loadCount + ", totalLoadTime=" + this.totalLoadTime
+                + ", evictionCount=" + this.evictionCount + "]";
+    }
+}
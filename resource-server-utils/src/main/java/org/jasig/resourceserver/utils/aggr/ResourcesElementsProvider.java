@@ -18,6 +18,12 @@
  */
 package org.jasig.resourceserver.utils.aggr;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
@@ -46,6 +52,12 @@ public interface ResourcesElementsProvider {
      * Default value of the {@link #AGGREGATED_THEME_PARAMETER} system property
      */
     public static final String DEFAULT_AGGREGATION_ENABLED = Boolean.TRUE.toString();
+    
+    /**
+     * Request attribute that overrides the default included type for a single request, either an {@link Included}
+     * or its {@link Included#value()}. {@link Included#BOTH} is ignored.
+     */
+    public static final String INCLUDED_TYPE_ATTRIBUTE = ResourcesElementsProvider.class.getName() + ".INCLUDED_TYPE";
 
     /**
      * Servlet context init-param used to specify the context path of the Resource Server
@@ -81,7 +93,8 @@ public interface ResourcesElementsProvider {
     public Included getDefaultIncludedType();
     
     /**
-     * They type of resources to be returned for this request
+     * They type of resources to be returned for this request, {@link #getDefaultIncludedType()} unless the request
+     * overrides it, see {@link #INCLUDED_TYPE_ATTRIBUTE}
      */
     public Included getIncludedType(HttpServletRequest request);
 
@@ -102,6 +115,30 @@ public interface ResourcesElementsProvider {
      */
     public String getResourcesHtmlFragment(HttpServletRequest request, String skinXml);
     
+    /**
+     * The {@link #getResourcesHtmlFragment(HttpServletRequest, String)} HTML fragment encoded with the specified
+     * charset. The returned buffer is read-only, implementations may share it between requests so its position
+     * must not be changed, use {@link ByteBuffer#duplicate()} for relative reads.
+     */
+    public default ByteBuffer getEncodedResourcesHtmlFragment(HttpServletRequest request, String skinXml, Charset charset) {
+        return ByteBuffer.wrap(this.getResourcesHtmlFragment(request, skinXml).getBytes(charset)).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Write the {@link #getResourcesHtmlFragment(HttpServletRequest, String)} HTML fragment to the stream encoded
+     * with the specified charset
+     */
+    public default void writeResourcesHtmlFragment(HttpServletRequest request, String skinXml, OutputStream out, Charset charset) throws IOException {
+        out.write(this.getResourcesHtmlFragment(request, skinXml).getBytes(charset));
+    }
+    
+    /**
+     * Write the {@link #getResourcesHtmlFragment(HttpServletRequest, String)} HTML fragment to the writer
+     */
+    public default void writeResourcesHtmlFragment(HttpServletRequest request, String skinXml, Writer writer) throws IOException {
+        writer.write(this.getResourcesHtmlFragment(request, skinXml));
+    }
+    
     /**
      * Get the resources to use for rhte specified request and skin XML file. Uses {@link #getIncludedType(HttpServletRequest)}
      * to determine which resource URLs to use.
@@ -43,22 +43,33 @@ package org.jasig.resourceserver.utils.aggr;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.bind.JAXBContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
@@ -77,8 +88,11 @@ import org.springframework.context.ResourceLoaderAware;
 import org.springframework.core.io.ClassRelativeResourceLoader;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.util.AntPathMatcher;
 import org.springframework.web.context.ServletContextAware;
+import org.springframework.web.context.support.ServletContextResource;
 import org.springframework.web.context.support.ServletContextResourceLoader;
+import org.springframework.web.context.support.ServletContextResourcePatternResolver;
 import org.w3c.dom.Comment;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
@@ -86,6 +100,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.Weigher;
 
 /**
  * {@link ResourcesDao} implementation that resolves the String argument using
@@ -98,7 +114,11 @@ import com.google.common.cache.CacheBuilder;
  */
 public class ResourcesElementsProviderImpl implements 
         ResourceLoaderAware, ServletContextAware, InitializingBean, 
-        ResourcesElementsProvider {
+        ResourcesElementsProvider, ResourcesElementsProviderMXBean {
+    
+    public static final String DEFAULT_RESOLVED_RESOURCE_CACHE_SPEC = "maximumSize=500";
+    public static final String DEFAULT_HTML_RESOURCES_CACHE_SPEC = "maximumSize=100";
+    public static final String DEFAULT_XML_RESOURCES_CACHE_SPEC = "maximumSize=100";
     
     private static final String OPEN_COND_COMMENT_PRE = "[";
     private static final String OPEN_COND_COMMENT_POST = "]> ";
@@ -107,6 +127,25 @@ public class ResourcesElementsProviderImpl implements
     private static final String CLOSE_SCRIPT = "\"></script>";
     private static final String OPEN_STYLE = "<link rel=\"stylesheet\" type=\"text/css\" href=\"";
     private static final String CLOSE_STYLE = "\"/>";
+    
+    //Markup written by getResourcesHtmlFragment, attributes are in the same order the DOM serializer used
+    private static final String OPEN_COMMENT = "<!--";
+    private static final String CLOSE_COMMENT = "-->";
+    private static final String OPEN_HTML_SCRIPT = "<script src=\"";
+    private static final String CLOSE_HTML_SCRIPT = "\" type=\"text/javascript\"> </script>";
+    private static final String OPEN_HTML_STYLE = "<link href=\"";
+    private static final String HTML_STYLE_MEDIA = "\" media=\"";
+    private static final String CLOSE_HTML_STYLE = "\" rel=\"stylesheet\" type=\"text/css\"/>";
+    private static final String[] ATTRIBUTE_ESCAPES = new String['>' + 1];
+    static {
+        ATTRIBUTE_ESCAPES['&'] = "&amp;";
+        ATTRIBUTE_ESCAPES['<'] = "&lt;";
+        ATTRIBUTE_ESCAPES['>'] = "&gt;";
+        ATTRIBUTE_ESCAPES['"'] = "&quot;";
+        ATTRIBUTE_ESCAPES['\t'] = "&#9;";
+        ATTRIBUTE_ESCAPES['\n'] = "&#10;";
+        ATTRIBUTE_ESCAPES['\r'] = "&#13;";
+    }
 
     private static final String SCRIPT = "script";
     private static final String LINK = "link";
@@ -116,17 +155,38 @@ public class ResourcesElementsProviderImpl implements
     private static final String TYPE = "type";
     private static final String MEDIA = "media";
 
+    //How often the default included type system properties are re-read, they may be changed outside of this instance
+    private static final long DEFAULT_INCLUDED_TYPE_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    
+    //Weights used when a cache spec sets a maximumWeight
+    private static final Weigher<String, String> STRING_LENGTH_WEIGHER = (key, value) -> value.length();
+    private static final Weigher<String, DocumentFragment> CHILD_NODES_WEIGHER = (key, value) -> value.getChildNodes().getLength();
+
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final DocumentBuilder documentBuilder;
-    private final TransformerFactory transformerFactory;
     private ResourceLoader resourceLoader;
     private ServletContext servletContext;
     private ResourcesDao resourcesDao;
     private boolean registerWithServletContext = true;
-    private Map<String, String> resolvedResourceCache       = CacheBuilder.newBuilder().maximumSize(500).<String, String>build().asMap();
-    private Map<String, String> htmlResourcesCache          = CacheBuilder.newBuilder().maximumSize(100).<String, String>build().asMap();
-    private Map<String, DocumentFragment> xmlResourcesCache = CacheBuilder.newBuilder().maximumSize(100).<String, DocumentFragment>build().asMap();
+    private String includedTypeHeader;
+    private String includedTypeCookie;
+    private volatile DefaultIncludedType defaultIncludedType = new DefaultIncludedType(readDefaultIncludedType());
+    private long resourceServerCheckInterval = TimeUnit.MINUTES.toNanos(1);
+    private final Object resourceServerManifestLock = new Object();
+    private volatile ResourceServerManifest resourceServerManifest;
+    private volatile long resourceServerNextCheck;
+    private List<String> warmUpSkins = Collections.emptyList();
+    private int warmUpThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private volatile CompletableFuture<Void> warmUp = CompletableFuture.completedFuture(null);
+    private ResourcesCache<String> resolvedResourceCache;
+    private ResourcesCache<String> htmlResourcesCache;
+    private ResourcesCache<DocumentFragment> xmlResourcesCache;
+    private final ResourcesCache<File> skinFileCache = new ResourcesCache<File>(CacheBuilder.newBuilder().maximumSize(100).recordStats().<String, File>build());
+    private ResourcesCache<String> plainResolvedResourceCache;
+    private ResourcesCache<PlainCacheEntry<String>> plainHtmlResourcesCache;
+    private ResourcesCache<PlainCacheEntry<DocumentFragment>> plainXmlResourcesCache;
+    private final ResourcesCache<EncodedHtmlFragment> encodedHtmlResourcesCache = new ResourcesCache<EncodedHtmlFragment>(CacheBuilder.newBuilder().maximumSize(200).recordStats().<String, EncodedHtmlFragment>build());
     
     public ResourcesElementsProviderImpl() {
         final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
@@ -137,7 +197,10 @@ public class ResourcesElementsProviderImpl implements
             throw new IllegalStateException("Failed to create DocumentBuilder", e);
         }
         
-        this.transformerFactory = TransformerFactory.newInstance();
+        this.setResolvedResourceCacheSpec(DEFAULT_RESOLVED_RESOURCE_CACHE_SPEC);
+        this.setHtmlResourcesCacheSpec(DEFAULT_HTML_RESOURCES_CACHE_SPEC);
+        this.setXmlResourcesCacheSpec(DEFAULT_XML_RESOURCES_CACHE_SPEC);
+        this.setPlainCacheExpiration(TimeUnit.MINUTES.toMillis(1));
     }
 
     @Override
@@ -165,32 +228,167 @@ public class ResourcesElementsProviderImpl implements
     }
     
     /**
-     * Thread-safe Map used to cache resolved resource URLs
+     * Milliseconds between checks of the resource server being deployed, redeployed or undeployed. The resources it
+     * serves are only listed again when its context changes. Defaults to one minute.
+     */
+    public void setResourceServerCheckInterval(long resourceServerCheckInterval) {
+        this.resourceServerCheckInterval = TimeUnit.MILLISECONDS.toNanos(resourceServerCheckInterval);
+    }
+    
+    /**
+     * Skin XML paths to generate the resources snippets of in the background after initialization, in the form
+     * passed to {@link #getResourcesHtmlFragment(HttpServletRequest, String)}. Paths with Ant style wildcards, for
+     * example <code>/media/skins/**&#47;skin.xml</code>, are matched against the {@link ServletContext}. Snippets are
+     * generated for the default included type. Defaults to no skins.
+     * 
+     * @see #isWarmedUp()
+     */
+    public void setWarmUpSkins(List<String> warmUpSkins) {
+        this.warmUpSkins = warmUpSkins;
+    }
+    
+    /**
+     * Number of skins to generate the resources snippets of in parallel during the warm-up. Defaults to the
+     * number of processors, up to 4.
+     */
+    public void setWarmUpThreads(int warmUpThreads) {
+        this.warmUpThreads = warmUpThreads;
+    }
+    
+    /**
+     * Name of a request header that overrides the default included type for the request, the header value must be
+     * <code>aggregated</code> or <code>plain</code>. Defaults to null, no header override.
+     */
+    public void setIncludedTypeHeader(String includedTypeHeader) {
+        this.includedTypeHeader = includedTypeHeader;
+    }
+
+    /**
+     * Name of a cookie that overrides the default included type for the request, the cookie value must be
+     * <code>aggregated</code> or <code>plain</code>. Defaults to null, no cookie override.
+     */
+    public void setIncludedTypeCookie(String includedTypeCookie) {
+        this.includedTypeCookie = includedTypeCookie;
+    }
+    
+    /**
+     * Thread-safe Map used to cache resolved resource URLs, evictions from the Map are not tracked.
+     * 
+     * @see #setResolvedResourceCacheSpec(String)
      */
     public void setResolvedResourceCache(Map<String, String> resolvedResourceCache) {
-        this.resolvedResourceCache = resolvedResourceCache;
+        this.resolvedResourceCache = new ResourcesCache<String>(resolvedResourceCache);
     }
 
     /**
-     * Thread safe Map used to cache generated skin resources HTML snippets
+     * Thread safe Map used to cache generated skin resources HTML snippets, evictions from the Map are not tracked.
+     * 
+     * @see #setHtmlResourcesCacheSpec(String)
      */
     public void setHtmlResourcesCache(Map<String, String> htmlResourcesCache) {
-        this.htmlResourcesCache = htmlResourcesCache;
+        this.htmlResourcesCache = new ResourcesCache<String>(htmlResourcesCache);
     }
 
     /**
-     * Thread safe Map used to cache generated skin resources XML snippets
+     * Thread safe Map used to cache generated skin resources XML snippets, evictions from the Map are not tracked.
+     * 
+     * @see #setXmlResourcesCacheSpec(String)
      */
     public void setXmlResourcesCache(Map<String, DocumentFragment> xmlResourcesCache) {
-        this.xmlResourcesCache = xmlResourcesCache;
+        this.xmlResourcesCache = new ResourcesCache<DocumentFragment>(xmlResourcesCache);
+    }
+    
+    /**
+     * {@link CacheBuilderSpec} of the cache of resolved resource URLs, a <code>maximumWeight</code> is compared to the
+     * total length of the cached URLs. Defaults to {@value #DEFAULT_RESOLVED_RESOURCE_CACHE_SPEC}
+     */
+    public void setResolvedResourceCacheSpec(String resolvedResourceCacheSpec) {
+        this.resolvedResourceCache = ResourcesCache.fromSpec(resolvedResourceCacheSpec, STRING_LENGTH_WEIGHER);
+    }
+    
+    /**
+     * {@link CacheBuilderSpec} of the cache of generated skin resources HTML snippets, a <code>maximumWeight</code>
+     * is compared to the total length of the cached snippets. Defaults to {@value #DEFAULT_HTML_RESOURCES_CACHE_SPEC}
+     */
+    public void setHtmlResourcesCacheSpec(String htmlResourcesCacheSpec) {
+        this.htmlResourcesCache = ResourcesCache.fromSpec(htmlResourcesCacheSpec, STRING_LENGTH_WEIGHER);
+    }
+    
+    /**
+     * {@link CacheBuilderSpec} of the cache of generated skin resources XML snippets, a <code>maximumWeight</code>
+     * is compared to the total number of link and script elements in the cached snippets. Defaults to 
+     * {@value #DEFAULT_XML_RESOURCES_CACHE_SPEC}
+     */
+    public void setXmlResourcesCacheSpec(String xmlResourcesCacheSpec) {
+        this.xmlResourcesCache = ResourcesCache.fromSpec(xmlResourcesCacheSpec, CHILD_NODES_WEIGHER);
+    }
+
+    /**
+     * Milliseconds resolved resource URLs and generated skin resources snippets are cached for when resources are
+     * not aggregated. Snippets are also regenerated as soon as the {@link ResourcesDao} reloads the skin XML
+     * because it changed. 0 disables caching of non-aggregated resources. Defaults to one minute.
+     */
+    public void setPlainCacheExpiration(long plainCacheExpiration) {
+        this.plainResolvedResourceCache = createPlainCache(500, plainCacheExpiration);
+        this.plainHtmlResourcesCache = createPlainCache(100, plainCacheExpiration);
+        this.plainXmlResourcesCache = createPlainCache(100, plainCacheExpiration);
     }
 
+    private static <V> ResourcesCache<V> createPlainCache(int maximumSize, long expiration) {
+        return new ResourcesCache<V>(CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiration, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .<String, V>build());
+    }
+    
     @Override
-    public void afterPropertiesSet() throws Exception {
-        if (this.registerWithServletContext && this.servletContext != null) {
-            this.servletContext.setAttribute(RESOURCES_ELEMENTS_PROVIDER, this);
-        }
+    public Map<String, ResourcesCacheStatistics> getCacheStatistics() {
+        final Map<String, ResourcesCache<?>> caches = new LinkedHashMap<String, ResourcesCache<?>>();
+        caches.put("resolvedResource", this.resolvedResourceCache);
+        caches.put("htmlResources", this.htmlResourcesCache);
+        caches.put("xmlResources", this.xmlResourcesCache);
+        caches.put("plainResolvedResource", this.plainResolvedResourceCache);
+        caches.put("plainHtmlResources", this.plainHtmlResourcesCache);
+        caches.put("plainXmlResources", this.plainXmlResourcesCache);
+        caches.put("encodedHtmlResources", this.encodedHtmlResourcesCache);
+        caches.put("skinFile", this.skinFileCache);
         
+        final Map<String, ResourcesCacheStatistics> cacheStatistics = new LinkedHashMap<String, ResourcesCacheStatistics>();
+        for (final Map.Entry<String, ResourcesCache<?>> cacheEntry : caches.entrySet()) {
+            final ResourcesCache<?> cache = cacheEntry.getValue();
+            cacheStatistics.put(cacheEntry.getKey(), new ResourcesCacheStatistics(cache.size(), cache.stats()));
+        }
+        return cacheStatistics;
+    }
+    
+    /**
+     * Resolved resource URLs are not specific to a skin and are kept.
+     */
+    @Override
+    public void invalidateSkin(String skinXml) {
+        this.htmlResourcesCache.invalidate(skinXml);
+        this.xmlResourcesCache.invalidate(skinXml);
+        this.plainHtmlResourcesCache.invalidate(skinXml);
+        this.plainXmlResourcesCache.invalidate(skinXml);
+        this.encodedHtmlResourcesCache.invalidateIf(key -> skinXml.equals(getEncodedHtmlFragmentSkin(key)));
+        this.skinFileCache.invalidate(skinXml);
+    }
+    
+    @Override
+    public void invalidateCaches() {
+        this.resolvedResourceCache.invalidateAll();
+        this.htmlResourcesCache.invalidateAll();
+        this.xmlResourcesCache.invalidateAll();
+        this.plainResolvedResourceCache.invalidateAll();
+        this.plainHtmlResourcesCache.invalidateAll();
+        this.plainXmlResourcesCache.invalidateAll();
+        this.encodedHtmlResourcesCache.invalidateAll();
+        this.skinFileCache.invalidateAll();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
         if (this.resourcesDao == null) {
             this.resourcesDao = new ResourcesDaoImpl();
         }
@@ -203,21 +401,121 @@ public class ResourcesElementsProviderImpl implements
                 this.resourceLoader = new ClassRelativeResourceLoader(getClass());
             }
         }
+        
+        if (!this.warmUpSkins.isEmpty()) {
+            this.warmUp = this.startWarmUp();
+        }
+        
+        //Register last, ResourcesElementsProviderUtils reads the attribute without locking
+        if (this.registerWithServletContext && this.servletContext != null) {
+            this.servletContext.setAttribute(RESOURCES_ELEMENTS_PROVIDER, this);
+        }
+    }
+    
+    @Override
+    public boolean isWarmedUp() {
+        return this.warmUp.isDone();
+    }
+    
+    /**
+     * Wait for the warm-up started during initialization to finish
+     * 
+     * @return true if the warm-up is finished, false if the timeout elapsed first
+     */
+    public boolean awaitWarmUp(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            this.warmUp.get(timeout, unit);
+            return true;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+        catch (ExecutionException e) {
+            //Failures are logged by the warm-up
+            return true;
+        }
+    }
+
+    /**
+     * Generate the resources snippets of the {@link #setWarmUpSkins(List)} skins on a separate thread pool
+     */
+    protected CompletableFuture<Void> startWarmUp() throws IOException {
+        final Set<String> skins = this.findWarmUpSkins();
+        final Included includedType = this.getDefaultIncludedType();
+        this.logger.info("Warming up {} resources for {} skins", includedType, skins.size());
+        
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, this.warmUpThreads), runnable -> {
+            final Thread thread = new Thread(runnable, "resources-warm-up-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Void>> skinWarmUps = new ArrayList<CompletableFuture<Void>>(skins.size());
+        for (final String skinXml : skins) {
+            skinWarmUps.add(CompletableFuture.runAsync(() -> this.warmUpSkin(skinXml, includedType), executorService));
+        }
+        executorService.shutdown();
+        
+        return CompletableFuture.allOf(skinWarmUps.toArray(new CompletableFuture<?>[skinWarmUps.size()]))
+                .whenComplete((result, e) -> this.logger.info("Warmed up {} skins in {}ms", skins.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+    
+    /**
+     * Resolve the {@link #setWarmUpSkins(List)} patterns to skin XML paths
+     */
+    protected Set<String> findWarmUpSkins() throws IOException {
+        final Set<String> skins = new LinkedHashSet<String>();
+        final AntPathMatcher pathMatcher = new AntPathMatcher();
+        for (final String warmUpSkin : this.warmUpSkins) {
+            if (!pathMatcher.isPattern(warmUpSkin)) {
+                skins.add(warmUpSkin);
+            }
+            else if (this.servletContext == null) {
+                this.logger.warn("Ignoring warm-up skin pattern {}, patterns require a ServletContext", warmUpSkin);
+            }
+            else {
+                final ServletContextResourcePatternResolver resolver = new ServletContextResourcePatternResolver(this.servletContext);
+                for (final Resource resource : resolver.getResources(warmUpSkin)) {
+                    if (resource instanceof ServletContextResource) {
+                        skins.add(((ServletContextResource) resource).getPath());
+                    }
+                }
+            }
+        }
+        return skins;
+    }
+    
+    /**
+     * Generate the HTML and XML resources snippets of the skin, failures are logged
+     */
+    protected void warmUpSkin(String skinXml, Included includedType) {
+        try {
+            final HttpServletRequest request = WarmUpRequest.create(this.servletContext, includedType);
+            this.getResourcesHtmlFragment(request, skinXml);
+            this.getResourcesXmlFragment(request, skinXml);
+            this.logger.debug("Warmed up {} resources for {}", includedType, skinXml);
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to warm up " + includedType + " resources for " + skinXml, e);
+        }
     }
 
     @Override
     public String resolveResourceUrl(HttpServletRequest request, String resource) {
+        //Clears the caches if the resource server changed
+        this.getResourceServerManifest();
         final Included includedType = this.getIncludedType(request);
         
-        String resourceUrl;
-        // If aggregation is enabled look in the cache to see if the resourceContext has already been determined
-        if (Included.AGGREGATED == includedType) {
-            resourceUrl = this.resolvedResourceCache.get(resource);
-            if (resourceUrl != null) {
-                return resourceUrl;
-            }
+        // Look in the cache to see if the resourceContext has already been determined
+        final ResourcesCache<String> resolvedResourceCache = Included.AGGREGATED == includedType ? this.resolvedResourceCache : this.plainResolvedResourceCache;
+        String resourceUrl = resolvedResourceCache.get(resource);
+        if (resourceUrl != null) {
+            return resourceUrl;
         }
         
+        final long resolveStart = System.nanoTime();
         final String resourceContextPath = this.resolveResourceContextPath(request, resource);
         
         //build the URL
@@ -225,14 +523,15 @@ public class ResourcesElementsProviderImpl implements
         
         this.logger.debug("Resolved {} to {}", resource, resourceUrl);
         
-        // If aggregation is enabled cache the resolved resource
-        if (Included.AGGREGATED == includedType) {
-            this.resolvedResourceCache.put(resource, resourceUrl);
-        }
+        resolvedResourceCache.put(resource, resourceUrl, resolveStart);
 
         return resourceUrl;
     }
     
+    /**
+     * Aggregated and plain resources are cached separately so switching the default included type does not
+     * clear either cache.
+     */
     @Override
     public void setDefaultIncludedType(Included included) {
         switch (included) {
@@ -242,9 +541,6 @@ public class ResourcesElementsProviderImpl implements
             }
             case PLAIN: {
                 System.setProperty(AGGREGATED_THEME_PARAMETER, Boolean.FALSE.toString());
-                this.resolvedResourceCache.clear();
-                this.htmlResourcesCache.clear();
-                this.xmlResourcesCache.clear();
                 break;
             }
             case BOTH:
@@ -252,11 +548,25 @@ public class ResourcesElementsProviderImpl implements
                 throw new UnsupportedOperationException("Unsupported Included type: " + included);
             }
         }
+        
+        this.defaultIncludedType = new DefaultIncludedType(included);
     }
     
-
+    /**
+     * The system properties are read at most once a second, changes made by other webapps in the JVM
+     * may take that long to be seen.
+     */
     @Override
     public Included getDefaultIncludedType() {
+        DefaultIncludedType defaultIncludedType = this.defaultIncludedType;
+        if (System.nanoTime() - defaultIncludedType.nextCheck >= 0) {
+            defaultIncludedType = new DefaultIncludedType(readDefaultIncludedType());
+            this.defaultIncludedType = defaultIncludedType;
+        }
+        return defaultIncludedType.included;
+    }
+
+    private static Included readDefaultIncludedType() {
         String aggregationParameter = System.getProperty(AGGREGATED_THEME_PARAMETER);
         if (aggregationParameter == null) {
             aggregationParameter = System.getProperty(LEGACY_AGGREGATED_THEME_PARAMETER_1);
@@ -279,9 +589,73 @@ public class ResourcesElementsProviderImpl implements
      */
     @Override
     public Included getIncludedType(HttpServletRequest request) {
+        if (request != null) {
+            final Included included = this.getRequestIncludedType(request);
+            if (included != null) {
+                return included;
+            }
+        }
+        
         return this.getDefaultIncludedType();
     }
     
+    /**
+     * The included type requested by the {@link #INCLUDED_TYPE_ATTRIBUTE} request attribute, the configured header
+     * or the configured cookie, checked in that order. A header or cookie override is stored in the request attribute
+     * so it is only parsed once per request.
+     * 
+     * @return null if the request does not override the default included type
+     */
+    protected Included getRequestIncludedType(HttpServletRequest request) {
+        final Object attribute = request.getAttribute(INCLUDED_TYPE_ATTRIBUTE);
+        if (attribute instanceof Included) {
+            return attribute == Included.BOTH ? null : (Included) attribute;
+        }
+        if (attribute != null) {
+            return parseIncludedType(attribute.toString());
+        }
+        
+        String value = null;
+        if (this.includedTypeHeader != null) {
+            value = request.getHeader(this.includedTypeHeader);
+        }
+        if (value == null && this.includedTypeCookie != null) {
+            final Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (final Cookie cookie : cookies) {
+                    if (this.includedTypeCookie.equals(cookie.getName())) {
+                        value = cookie.getValue();
+                        break;
+                    }
+                }
+            }
+        }
+        if (value == null) {
+            return null;
+        }
+        
+        final Included included = parseIncludedType(value);
+        if (included != null) {
+            request.setAttribute(INCLUDED_TYPE_ATTRIBUTE, included);
+        }
+        return included;
+    }
+    
+    private Included parseIncludedType(String value) {
+        try {
+            final Included included = Included.fromValue(value.trim().toLowerCase());
+            if (included != Included.BOTH) {
+                return included;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            //Fall through to the warning
+        }
+        
+        this.logger.warn("Ignoring invalid included type override: {}", value);
+        return null;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.resource.aggr.util.ResourcesElementsProvider#getResourcesParameter(javax.servlet.http.HttpServletRequest, java.lang.String, java.lang.String)
      */
@@ -311,6 +685,8 @@ public class ResourcesElementsProviderImpl implements
     
     @Override
     public String getResourcesHtmlFragment(HttpServletRequest request, String skinXml) {
+        //Clears the caches if the resource server changed
+        this.getResourceServerManifest();
         final Included includedType = this.getIncludedType(request);
         
         String htmlFragment;
@@ -321,39 +697,103 @@ public class ResourcesElementsProviderImpl implements
             }
         }
         
-        final DocumentFragment resourcesXml = this.getResourcesXml(request, skinXml);
-
-        final StringWriter stringWriter = new StringWriter();
-        try {
-            final Transformer transformer = transformerFactory.newTransformer();
-            if (Included.PLAIN == this.getIncludedType(request)) {
-                transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        final long generateStart = System.nanoTime();
+        final Resources skinResources = this.getResources(request, skinXml);
+        if (skinResources == null) {
+            logger.warn("Could not find skin file " + skinXml);
+            return "";
+        }
+        
+        // Without aggregation the cached fragment is only used while the DAO returns the Resources it was built from
+        if (Included.PLAIN == includedType) {
+            final PlainCacheEntry<String> cachedFragment = this.plainHtmlResourcesCache.get(skinXml, entry -> entry.resources == skinResources);
+            if (cachedFragment != null) {
+                return cachedFragment.value;
             }
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.transform(new DOMSource(resourcesXml), new StreamResult(stringWriter));
         }
-        catch (Exception e) {
-            throw new RuntimeException("Failed to serialize XML fragment to HTML fragment", e);
+        
+        //Built directly from the Resources, the DOM is only used by getResourcesXmlFragment
+        final List<Css> cssList = skinResources.getCss();
+        final List<Js> jsList = skinResources.getJs();
+        final StringBuilder html = new StringBuilder((cssList.size() + jsList.size()) * 128);
+        final String lineSeparator = Included.PLAIN == includedType ? "\n" : "";
+        
+        final String relativeRoot = request.getContextPath() + "/" + FilenameUtils.getPath(skinXml);
+        for (final Css css : cssList) {
+            appendCssHtml(request, html, css, relativeRoot);
+            html.append(lineSeparator);
+        }
+        for (final Js js : jsList) {
+            appendJsHtml(request, html, js, relativeRoot);
+            html.append(lineSeparator);
         }
         
-        htmlFragment = stringWriter.toString();
+        htmlFragment = html.toString();
         if (Included.AGGREGATED == includedType) {
-            this.htmlResourcesCache.put(skinXml, htmlFragment);
+            this.htmlResourcesCache.put(skinXml, htmlFragment, generateStart);
+        }
+        else {
+            this.plainHtmlResourcesCache.put(skinXml, new PlainCacheEntry<String>(skinResources, htmlFragment), generateStart);
         }
         return htmlFragment;
     }
 
+    @Override
+    public ByteBuffer getEncodedResourcesHtmlFragment(HttpServletRequest request, String skinXml, Charset charset) {
+        return this.getEncodedHtmlFragment(request, skinXml, charset).buffer;
+    }
+    
+    @Override
+    public void writeResourcesHtmlFragment(HttpServletRequest request, String skinXml, OutputStream out, Charset charset) throws IOException {
+        out.write(this.getEncodedHtmlFragment(request, skinXml, charset).bytes);
+    }
+    
+    /**
+     * The encoded HTML fragment is cached by included type, charset and skin for as long as
+     * {@link #getResourcesHtmlFragment(HttpServletRequest, String)} returns the fragment it was encoded from
+     */
+    private EncodedHtmlFragment getEncodedHtmlFragment(HttpServletRequest request, String skinXml, Charset charset) {
+        final Included includedType = this.getIncludedType(request);
+        final String htmlFragment = this.getResourcesHtmlFragment(request, skinXml);
+        
+        final String key = getEncodedHtmlFragmentKey(includedType, charset, skinXml);
+        final EncodedHtmlFragment cachedFragment = this.encodedHtmlResourcesCache.get(key, entry -> entry.htmlFragment == htmlFragment);
+        if (cachedFragment != null) {
+            return cachedFragment;
+        }
+        
+        final long encodeStart = System.nanoTime();
+        final EncodedHtmlFragment encodedFragment = new EncodedHtmlFragment(htmlFragment, htmlFragment.getBytes(charset));
+        this.encodedHtmlResourcesCache.put(key, encodedFragment, encodeStart);
+        return encodedFragment;
+    }
+    
+    /**
+     * Neither the included type nor a charset name contain a space, everything after the second one is the skin
+     */
+    private static String getEncodedHtmlFragmentKey(Included includedType, Charset charset, String skinXml) {
+        return includedType.name() + " " + charset.name() + " " + skinXml;
+    }
+    
+    private static String getEncodedHtmlFragmentSkin(String key) {
+        return key.substring(key.indexOf(' ', key.indexOf(' ') + 1) + 1);
+    }
+
     @Override
     public Resources getResources(HttpServletRequest request, String skinXml) {
         final Included includedType = this.getIncludedType(request);
 
-        final Resource skinResource = getResource(skinXml);
-        final File skinFile;
-        try {
-            skinFile = skinResource.getFile();
-        }
-        catch (IOException e) {
-            throw new IllegalArgumentException("Failed to get File for skin XML path: " + skinXml, e);
+        File skinFile = this.skinFileCache.get(skinXml);
+        if (skinFile == null) {
+            final long resolveStart = System.nanoTime();
+            final Resource skinResource = getResource(skinXml);
+            try {
+                skinFile = skinResource.getFile();
+            }
+            catch (IOException e) {
+                throw new IllegalArgumentException("Failed to get File for skin XML path: " + skinXml, e);
+            }
+            this.skinFileCache.put(skinXml, skinFile, resolveStart);
         }
 
         switch (includedType) {
@@ -381,28 +821,29 @@ public class ResourcesElementsProviderImpl implements
      * If not, create a local URL for the requested resource.
      */
     protected String resolveResourceContextPath(HttpServletRequest request, String resource) {
-        final String resourceContextPath = this.getResourceServerContextPath();
-        
-        this.logger.debug("Attempting to locate resource serving webapp with context path: {}", resourceContextPath);
-        
-        //Try to resolve the 
-        final ServletContext resourceContext = this.servletContext.getContext(resourceContextPath);
-        if (resourceContext == null || !resourceContextPath.equals(resourceContext.getContextPath())) {
-            this.logger.warn("Could not find resource serving webapp under context path {} ensure the resource server is deployed and cross context dispatching is enable for this web application", resourceContextPath);
+        final ResourceServerManifest manifest = this.getResourceServerManifest();
+        final ServletContext resourceContext = manifest.getResourceContext();
+        if (resourceContext == null) {
+            this.logger.debug("No resource serving webapp, using the local resource {}", resource);
             return request.getContextPath();
         }
         
-        this.logger.debug("Found resource serving webapp at: {}", resourceContextPath);
+        final String resourceContextPath = manifest.getContextPath();
         
-        URL url = null;
-        try {
-            url = resourceContext.getResource(resource);
-        }
-        catch (MalformedURLException e) {
-            //Ignore
+        Boolean found = manifest.contains(resource);
+        if (found == null) {
+            //Not covered by the manifest, ask the resource server
+            URL url = null;
+            try {
+                url = resourceContext.getResource(resource);
+            }
+            catch (MalformedURLException e) {
+                //Ignore
+            }
+            found = url != null;
         }
         
-        if (url == null) {
+        if (!found) {
             this.logger.debug("Resource serving webapp {} doesn't contain resource {} Falling back to the local resource.", resourceContextPath, resource);
             return request.getContextPath();
         }
@@ -410,7 +851,62 @@ public class ResourcesElementsProviderImpl implements
         this.logger.debug("Resource serving webapp {} contains resource {} Using resource server.", resourceContextPath, resource);
         return resourceContextPath;
     }
-
+    
+    /**
+     * The current manifest of the resource server, the cross context lookup of the resource server is only done
+     * once per {@link #setResourceServerCheckInterval(long)} and its resources are only listed again if it was
+     * redeployed. Resolved URLs and generated snippets are cleared when the resources it serves change.
+     */
+    private ResourceServerManifest getResourceServerManifest() {
+        if (this.servletContext == null) {
+            //Not running in a web application, there is no resource server
+            return ResourceServerManifest.build(null);
+        }
+        
+        if (System.nanoTime() - this.resourceServerNextCheck < 0) {
+            final ResourceServerManifest manifest = this.resourceServerManifest;
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+        
+        synchronized (this.resourceServerManifestLock) {
+            ResourceServerManifest manifest = this.resourceServerManifest;
+            if (manifest != null && System.nanoTime() - this.resourceServerNextCheck < 0) {
+                return manifest;
+            }
+            
+            final String resourceContextPath = this.getResourceServerContextPath();
+            this.logger.debug("Attempting to locate resource serving webapp with context path: {}", resourceContextPath);
+            
+            ServletContext resourceContext = this.servletContext.getContext(resourceContextPath);
+            if (resourceContext != null && !resourceContextPath.equals(resourceContext.getContextPath())) {
+                resourceContext = null;
+            }
+            
+            if (manifest == null || !manifest.isFor(resourceContext)) {
+                final ResourceServerManifest newManifest = ResourceServerManifest.build(resourceContext);
+                if (resourceContext == null) {
+                    this.logger.warn("Could not find resource serving webapp under context path {} ensure the resource server is deployed and cross context dispatching is enable for this web application", resourceContextPath);
+                }
+                else {
+                    this.logger.info("Found resource serving webapp at {} with {} resources under {}", resourceContextPath, newManifest.size(), ResourceServerManifest.MANIFEST_PATH);
+                }
+                
+                if (manifest != null && !manifest.hasSameResources(newManifest)) {
+                    this.logger.info("Resources served by {} changed, clearing resolved resource caches", resourceContextPath);
+                    this.invalidateCaches();
+                }
+                
+                manifest = newManifest;
+                this.resourceServerManifest = manifest;
+            }
+            
+            this.resourceServerNextCheck = System.nanoTime() + this.resourceServerCheckInterval;
+            return manifest;
+        }
+    }
+    
     /**
      * Determine the context name of the resource serving webapp 
      */
@@ -434,6 +930,8 @@ public class ResourcesElementsProviderImpl implements
      * Build XML {@link DocumentFragment} of link and script tags for the specified skin file 
      */
     protected DocumentFragment getResourcesXml(HttpServletRequest request, String skinXml) {
+        //Clears the caches if the resource server changed
+        this.getResourceServerManifest();
         final Included includedType = this.getIncludedType(request);
         
         DocumentFragment headFragment;
@@ -444,13 +942,25 @@ public class ResourcesElementsProviderImpl implements
             }
         }
         
+        final long generateStart = System.nanoTime();
         final Resources skinResources = this.getResources(request, skinXml);
         if (skinResources == null) {
             logger.warn("Could not find skin file " + skinXml);
             return null;
         }
+        
+        if (Included.PLAIN == includedType) {
+            final PlainCacheEntry<DocumentFragment> cachedFragment = this.plainXmlResourcesCache.get(skinXml, entry -> entry.resources == skinResources);
+            if (cachedFragment != null) {
+                return cachedFragment.value;
+            }
+        }
 
-        final Document doc = this.documentBuilder.newDocument();
+        //DocumentBuilder is not thread-safe
+        final Document doc;
+        synchronized (this.documentBuilder) {
+            doc = this.documentBuilder.newDocument();
+        }
         headFragment = doc.createDocumentFragment();
 
         final String relativeRoot = request.getContextPath() + "/" + FilenameUtils.getPath(skinXml);
@@ -462,7 +972,10 @@ public class ResourcesElementsProviderImpl implements
         }
         
         if (Included.AGGREGATED == includedType) {
-            this.xmlResourcesCache.put(skinXml, headFragment);
+            this.xmlResourcesCache.put(skinXml, headFragment, generateStart);
+        }
+        else {
+            this.plainXmlResourcesCache.put(skinXml, new PlainCacheEntry<DocumentFragment>(skinResources, headFragment), generateStart);
         }
         return headFragment;
     }
@@ -537,6 +1050,71 @@ public class ResourcesElementsProviderImpl implements
         }
     }
 
+    /**
+     * Append the {@link Js} argument as an HTML script tag
+     */
+    protected void appendJsHtml(HttpServletRequest request, StringBuilder html, Js js, String relativeRoot) {
+        final String scriptPath = getElementPath(request, js, relativeRoot);
+
+        if (resourcesDao.isConditional(js)) {
+            html.append(OPEN_COMMENT)
+                .append(OPEN_COND_COMMENT_PRE).append(js.getConditional()).append(OPEN_COND_COMMENT_POST)
+                .append(OPEN_SCRIPT).append(scriptPath).append(CLOSE_SCRIPT)
+                .append(CLOSE_COND_COMMENT)
+                .append(CLOSE_COMMENT);
+        }
+        else {
+            html.append(OPEN_HTML_SCRIPT);
+            appendEscaped(html, scriptPath);
+            html.append(CLOSE_HTML_SCRIPT);
+        }
+    }
+
+    /**
+     * Append the {@link Css} argument as an HTML link tag
+     */
+    protected void appendCssHtml(HttpServletRequest request, StringBuilder html, Css css, String relativeRoot) {
+        final String stylePath = getElementPath(request, css, relativeRoot);
+        final String media = css.getMedia();
+
+        if (resourcesDao.isConditional(css)) {
+            html.append(OPEN_COMMENT)
+                .append(OPEN_COND_COMMENT_PRE).append(css.getConditional()).append(OPEN_COND_COMMENT_POST)
+                .append(OPEN_STYLE).append(stylePath);
+            if (StringUtils.isNotBlank(media)) {
+                html.append("\" media=\"").append(media);
+            }
+            html.append(CLOSE_STYLE)
+                .append(CLOSE_COND_COMMENT)
+                .append(CLOSE_COMMENT);
+        }
+        else {
+            html.append(OPEN_HTML_STYLE);
+            appendEscaped(html, stylePath);
+            if (StringUtils.isNotBlank(media)) {
+                html.append(HTML_STYLE_MEDIA);
+                appendEscaped(html, media);
+            }
+            html.append(CLOSE_HTML_STYLE);
+        }
+    }
+
+    /**
+     * Append an attribute value escaped the same way the DOM serializer escapes it
+     */
+    static void appendEscaped(StringBuilder html, String value) {
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final String replacement = c < ATTRIBUTE_ESCAPES.length ? ATTRIBUTE_ESCAPES[c] : null;
+            if (replacement != null) {
+                html.append(value, start, i).append(replacement);
+                start = i + 1;
+            }
+        }
+        html.append(value, start, value.length());
+    }
+
     protected <T extends BasicInclude> String getElementPath(HttpServletRequest request, T basicInclude, String relativeRoot) {
         String path = basicInclude.getValue();
         
@@ -553,4 +1131,46 @@ public class ResourcesElementsProviderImpl implements
         
         return path;
     }
+
+    /**
+     * Snapshot of the default included type and when the system properties should next be read
+     */
+    private static final class DefaultIncludedType {
+        private final Included included;
+        private final long nextCheck;
+        
+        DefaultIncludedType(Included included) {
+            this.included = included;
+            this.nextCheck = System.nanoTime() + DEFAULT_INCLUDED_TYPE_CHECK_INTERVAL;
+        }
+    }
+    
+    /**
+     * HTML fragment encoded with one charset, the buffer is read-only and the array is never modified so both are
+     * shared between requests
+     */
+    private static final class EncodedHtmlFragment {
+        private final String htmlFragment;
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        
+        EncodedHtmlFragment(String htmlFragment, byte[] bytes) {
+            this.htmlFragment = htmlFragment;
+            this.bytes = bytes;
+            this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+    }
+    
+    /**
+     * Cached result for non-aggregated resources and the Resources it was generated from
+     */
+    private static final class PlainCacheEntry<T> {
+        private final Resources resources;
+        private final T value;
+        
+        PlainCacheEntry(Resources resources, T value) {
+            this.resources = resources;
+            this.value = value;
+        }
+    }
 }
@@ -0,0 +1,48 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.utils.aggr;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ResourcesElementsProviderImpl} for exporting it with JMX
+ */
+public interface ResourcesElementsProviderMXBean {
+    /**
+     * Statistics of each of the provider's caches keyed by cache name
+     */
+    public Map<String, ResourcesCacheStatistics> getCacheStatistics();
+    
+    /**
+     * True once the resources snippets of the configured warm-up skins have been generated, true if no warm-up
+     * skins are configured
+     */
+    public boolean isWarmedUp();
+    
+    /**
+     * Remove the generated resources snippets and the resolved skin file for the specified skin XML path, as it
+     * is passed to {@link ResourcesElementsProvider#getResourcesHtmlFragment(javax.servlet.http.HttpServletRequest, String)}
+     */
+    public void invalidateSkin(String skinXml);
+    
+    /**
+     * Remove every entry from the provider's caches
+     */
+    public void invalidateCaches();
+}
@@ -39,12 +39,22 @@ public final class ResourcesElementsProviderUtils {
         return (ResourcesElementsProvider)servletContext.getAttribute(ResourcesElementsProvider.RESOURCES_ELEMENTS_PROVIDER);
     }
     
+    /**
+     * Find the {@link ResourcesElementsProvider} registered in the {@link ServletContext}, creating and registering
+     * a {@link ResourcesElementsProviderImpl} if there is none. Once a provider is registered the lookup is a single
+     * attribute read without any locking, the container's attribute map publishes the provider safely.
+     */
     public static ResourcesElementsProvider getOrCreateResourcesElementsProvider(final ServletContext servletContext) { 
+        final ResourcesElementsProvider resourcesElementsProvider = getResourcesElementsProvider(servletContext);
+        if (resourcesElementsProvider != null) {
+            return resourcesElementsProvider;
+        }
+        
         //Lock to make sure only one ResourcesElementsProvider instance is created if need be
         synchronized (servletContext) {
-            final ResourcesElementsProvider resourcesElementsProvider = getResourcesElementsProvider(servletContext);
-            if (resourcesElementsProvider != null) {
-                return resourcesElementsProvider;
+            final ResourcesElementsProvider existingProvider = getResourcesElementsProvider(servletContext);
+            if (existingProvider != null) {
+                return existingProvider;
             }
             
             LOGGER.warn("No ResourcesElementsProvider found as a ServletContext attribute. Creating a new ResourcesElementsProviderImpl and caching it in the ServletContext under key: {}", ResourcesElementsProvider.RESOURCES_ELEMENTS_PROVIDER);
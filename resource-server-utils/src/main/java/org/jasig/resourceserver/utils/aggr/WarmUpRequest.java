@@ -0,0 +1,105 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.resourceserver.utils.aggr;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.resourceserver.aggr.om.Included;
+
+/**
+ * {@link HttpServletRequest} used to generate resources snippets before the first real request. It only has the
+ * context path of the web application and attributes, every other method returns null, false or 0.
+ */
+final class WarmUpRequest implements InvocationHandler {
+    private final ServletContext servletContext;
+    private final String contextPath;
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    
+    private WarmUpRequest(ServletContext servletContext, Included includedType) {
+        this.servletContext = servletContext;
+        this.contextPath = servletContext != null ? servletContext.getContextPath() : "";
+        this.attributes.put(ResourcesElementsProvider.INCLUDED_TYPE_ATTRIBUTE, includedType);
+    }
+
+    /**
+     * @param includedType The type of resources to generate snippets for
+     */
+    static HttpServletRequest create(ServletContext servletContext, Included includedType) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                WarmUpRequest.class.getClassLoader(), 
+                new Class<?>[] { HttpServletRequest.class }, 
+                new WarmUpRequest(servletContext, includedType));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getContextPath": {
+                return this.contextPath;
+            }
+            case "getServletContext": {
+                return this.servletContext;
+            }
+            case "getAttribute": {
+                return this.attributes.get(args[0]);
+            }
+            case "getAttributeNames": {
+                return Collections.enumeration(this.attributes.keySet());
+            }
+            case "setAttribute": {
+                this.attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            case "removeAttribute": {
+                this.attributes.remove(args[0]);
+                return null;
+            }
+            case "equals": {
+                return proxy == args[0];
+            }
+            case "hashCode": {
+                return System.identityHashCode(proxy);
+            }
+            case "toString": {
+                return "WarmUpRequest [contextPath=" + this.contextPath + "]";
+            }
+            default: {
+                final Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                }
+                if (returnType == int.class) {
+                    return 0;
+                }
+                if (returnType == long.class) {
+                    return 0L;
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -19,12 +19,16 @@
 package org.jasig.resourceserver.utils.taglib;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 import javax.servlet.ServletContext;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
 import javax.servlet.jsp.tagext.TagSupport;
 
 import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
@@ -55,11 +59,16 @@ public class AggregatedResourcesTag extends TagSupport {
         final ResourcesElementsProvider resourcesElementsProvider = ResourcesElementsProviderUtils.getOrCreateResourcesElementsProvider(servletContext);
         
         final HttpServletRequest request = (HttpServletRequest)this.pageContext.getRequest();
-        final String resourcesFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, this._path);
         
         final JspWriter out = pageContext.getOut();
         try {
-            out.print(resourcesFragment);
+            if (out instanceof BodyContent) {
+                //Body of an enclosing tag, the fragment has to be written as characters
+                resourcesElementsProvider.writeResourcesHtmlFragment(request, this._path, out);
+            }
+            else {
+                this.writeEncoded(resourcesElementsProvider, request, out);
+            }
         }
         catch (IOException e) {
             throw new JspTagException("Error writing resources to page.", e);
@@ -68,6 +77,27 @@ public class AggregatedResourcesTag extends TagSupport {
         return EVAL_PAGE;
     }
 
+    /**
+     * Write the cached encoded fragment to the response output stream, the page output written so far is flushed
+     * first to keep it in order. Falls back to the JspWriter if the response is already written through its Writer.
+     */
+    protected void writeEncoded(ResourcesElementsProvider resourcesElementsProvider, HttpServletRequest request, JspWriter out) throws IOException {
+        final ServletResponse response = this.pageContext.getResponse();
+        out.flush();
+        
+        final OutputStream outputStream;
+        try {
+            outputStream = response.getOutputStream();
+        }
+        catch (IllegalStateException e) {
+            resourcesElementsProvider.writeResourcesHtmlFragment(request, this._path, out);
+            return;
+        }
+        
+        final Charset charset = Charset.forName(response.getCharacterEncoding());
+        resourcesElementsProvider.writeResourcesHtmlFragment(request, this._path, outputStream, charset);
+    }
+
     public String getPath() {
         return _path;
     }
@@ -19,14 +19,43 @@
 package org.jasig.resourceserver.utils.aggr;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
 
+import org.apache.commons.io.FileUtils;
+import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
+import org.jasig.resourceserver.aggr.om.Included;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockServletContext;
 
@@ -97,4 +126,355 @@ public class ResourcesElementsProviderImplTest {
                 "<script src=\"/uPortal/XR-SqpcE6eDDI_uEp3vkCQ.aggr.min.js\" type=\"text/javascript\"> </script>", 
                 resourcesHtmlFragment);
     }
+    
+    @Test 
+    public void testHtmlFragmentMediaAndConditional() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        final MockServletContext servletContext = new MockServletContext();
+        resourcesElementsProvider.setServletContext(servletContext);
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        request.setContextPath("/uPortal");
+        
+        final String resourcesHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin-media.xml");
+        
+        assertEquals(
+                "<link href=\"/uPortal/print&amp;screen.css\" media=\"print\" rel=\"stylesheet\" type=\"text/css\"/>" +
+                "<!--[if IE 6]> <link rel=\"stylesheet\" type=\"text/css\" href=\"/uPortal/ie6.css\" media=\"all\"/> <![endif]-->" +
+                "<!--[if lt IE 9]> <script type=\"text/javascript\" src=\"/uPortal/html5shiv.js\"></script> <![endif]-->" +
+                "<script src=\"/uPortal/app.js\" type=\"text/javascript\"> </script>", 
+                resourcesHtmlFragment);
+    }
+    
+    @Test 
+    public void testHtmlFragmentConcurrent() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        //Never cache the fragment so every call renders it
+        resourcesElementsProvider.setHtmlResourcesCache(new HashMap<String, String>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String put(String key, String value) {
+                return null;
+            }
+        });
+        
+        final MockServletContext servletContext = new MockServletContext();
+        resourcesElementsProvider.setServletContext(servletContext);
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        final String expected = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 500; i++) {
+                            assertEquals(expected, resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml"));
+                            resourcesElementsProvider.getResourcesXmlFragment(request, "skin.xml");
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    @Test 
+    public void testRequestIncludedType() throws Exception {
+        final String aggregatedThemeParameter = System.getProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER);
+        try {
+            final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+            resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+            resourcesElementsProvider.setServletContext(new MockServletContext());
+            resourcesElementsProvider.setIncludedTypeHeader("X-Resources-Included");
+            resourcesElementsProvider.setIncludedTypeCookie("resourcesIncluded");
+            resourcesElementsProvider.afterPropertiesSet();
+            resourcesElementsProvider.setDefaultIncludedType(Included.AGGREGATED);
+            
+            final MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setContextPath("/uPortal");
+            assertEquals(Included.AGGREGATED, resourcesElementsProvider.getIncludedType(request));
+            
+            final MockHttpServletRequest headerRequest = new MockHttpServletRequest();
+            headerRequest.setContextPath("/uPortal");
+            headerRequest.addHeader("X-Resources-Included", "Plain");
+            assertEquals(Included.PLAIN, resourcesElementsProvider.getIncludedType(headerRequest));
+            
+            final MockHttpServletRequest cookieRequest = new MockHttpServletRequest();
+            cookieRequest.setCookies(new Cookie("resourcesIncluded", "plain"));
+            assertEquals(Included.PLAIN, resourcesElementsProvider.getIncludedType(cookieRequest));
+            
+            final MockHttpServletRequest invalidRequest = new MockHttpServletRequest();
+            invalidRequest.addHeader("X-Resources-Included", "both");
+            assertEquals(Included.AGGREGATED, resourcesElementsProvider.getIncludedType(invalidRequest));
+            
+            final MockHttpServletRequest attributeRequest = new MockHttpServletRequest();
+            attributeRequest.addHeader("X-Resources-Included", "plain");
+            attributeRequest.setAttribute(ResourcesElementsProvider.INCLUDED_TYPE_ATTRIBUTE, Included.AGGREGATED);
+            assertEquals(Included.AGGREGATED, resourcesElementsProvider.getIncludedType(attributeRequest));
+            
+            final String aggregatedHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+            final String plainHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(headerRequest, "skin.xml");
+            assertTrue(aggregatedHtmlFragment, aggregatedHtmlFragment.contains(".aggr.min.js"));
+            assertTrue(plainHtmlFragment, !plainHtmlFragment.contains(".aggr.min.js"));
+            
+            //Switching the default included type keeps both caches
+            resourcesElementsProvider.setDefaultIncludedType(Included.PLAIN);
+            assertEquals(Included.PLAIN, resourcesElementsProvider.getIncludedType(request));
+            assertSame(plainHtmlFragment, resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml"));
+            resourcesElementsProvider.setDefaultIncludedType(Included.AGGREGATED);
+            assertSame(aggregatedHtmlFragment, resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml"));
+        }
+        finally {
+            if (aggregatedThemeParameter != null) {
+                System.setProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER, aggregatedThemeParameter);
+            }
+            else {
+                System.clearProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER);
+            }
+        }
+    }
+    
+    @Test 
+    public void testResourceServerManifest() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        final MockServletContext servletContext = new MockServletContext();
+        resourcesElementsProvider.setServletContext(servletContext);
+        resourcesElementsProvider.setResourceServerCheckInterval(0);
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        
+        assertEquals("/uPortal/rs/jquery/1.10.2/jquery-1.10.2.min.js", resourcesElementsProvider.resolveResourceUrl(request, "/rs/jquery/1.10.2/jquery-1.10.2.min.js"));
+        
+        final AtomicInteger getResourceCount = new AtomicInteger();
+        servletContext.registerContext(ResourcesElementsProvider.DEFAULT_RESOURCE_CONTEXT, createResourceServerContext(getResourceCount, 
+                "/rs/jquery/1.10.2/jquery-1.10.2.min.js",
+                "/rs/jquery/1.10.2/jquery-1.10.2.js",
+                "/rs/fluid/1.4.0/css/fss-reset.css"));
+        
+        //Resources resolved before the resource server was deployed are resolved again
+        assertEquals("/resource-server/rs/jquery/1.10.2/jquery-1.10.2.min.js", resourcesElementsProvider.resolveResourceUrl(request, "/rs/jquery/1.10.2/jquery-1.10.2.min.js"));
+        assertEquals("/resource-server/rs/fluid/1.4.0/css/fss-reset.css", resourcesElementsProvider.resolveResourceUrl(request, "/rs/fluid/1.4.0/css/fss-reset.css"));
+        assertEquals("/uPortal/rs/jquery/1.10.2/missing.js", resourcesElementsProvider.resolveResourceUrl(request, "/rs/jquery/1.10.2/missing.js"));
+        assertEquals(0, getResourceCount.get());
+        
+        //Resources outside of the manifest are looked up in the resource server
+        assertEquals("/uPortal/css/local.css", resourcesElementsProvider.resolveResourceUrl(request, "/css/local.css"));
+        assertEquals(1, getResourceCount.get());
+        
+        //Redeployed resource server without fluid
+        servletContext.registerContext(ResourcesElementsProvider.DEFAULT_RESOURCE_CONTEXT, createResourceServerContext(getResourceCount, 
+                "/rs/jquery/1.10.2/jquery-1.10.2.min.js"));
+        assertEquals("/uPortal/rs/fluid/1.4.0/css/fss-reset.css", resourcesElementsProvider.resolveResourceUrl(request, "/rs/fluid/1.4.0/css/fss-reset.css"));
+        assertEquals("/resource-server/rs/jquery/1.10.2/jquery-1.10.2.min.js", resourcesElementsProvider.resolveResourceUrl(request, "/rs/jquery/1.10.2/jquery-1.10.2.min.js"));
+    }
+    
+    private static ServletContext createResourceServerContext(final AtomicInteger getResourceCount, final String... resources) {
+        return new MockServletContext() {
+            @Override
+            public String getContextPath() {
+                return ResourcesElementsProvider.DEFAULT_RESOURCE_CONTEXT;
+            }
+            
+            @Override
+            public Set<String> getResourcePaths(String path) {
+                final Set<String> resourcePaths = new LinkedHashSet<String>();
+                for (final String resource : resources) {
+                    if (resource.startsWith(path)) {
+                        final int childEnd = resource.indexOf('/', path.length());
+                        resourcePaths.add(childEnd < 0 ? resource : resource.substring(0, childEnd + 1));
+                    }
+                }
+                return resourcePaths;
+            }
+            
+            @Override
+            public URL getResource(String path) throws MalformedURLException {
+                getResourceCount.incrementAndGet();
+                return null;
+            }
+        };
+    }
+    
+    @Test 
+    public void testCacheStatistics() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        resourcesElementsProvider.setServletContext(new MockServletContext());
+        resourcesElementsProvider.setXmlResourcesCacheSpec("maximumWeight=1");
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        request.setAttribute(ResourcesElementsProvider.INCLUDED_TYPE_ATTRIBUTE, Included.AGGREGATED);
+        
+        resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+        resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+        
+        ResourcesCacheStatistics htmlStatistics = resourcesElementsProvider.getCacheStatistics().get("htmlResources");
+        assertEquals(1, htmlStatistics.getSize());
+        assertEquals(1, htmlStatistics.getHitCount());
+        assertEquals(1, htmlStatistics.getMissCount());
+        assertEquals(1, htmlStatistics.getLoadCount());
+        assertEquals(0.5, htmlStatistics.getHitRate(), 0.0);
+        
+        //Fragments with more than one element are heavier than the maximum weight
+        resourcesElementsProvider.getResourcesXmlFragment(request, "skin.xml");
+        final ResourcesCacheStatistics xmlStatistics = resourcesElementsProvider.getCacheStatistics().get("xmlResources");
+        assertEquals(0, xmlStatistics.getSize());
+        assertEquals(1, xmlStatistics.getEvictionCount());
+        
+        resourcesElementsProvider.invalidateSkin("skin.xml");
+        htmlStatistics = resourcesElementsProvider.getCacheStatistics().get("htmlResources");
+        assertEquals(0, htmlStatistics.getSize());
+        assertEquals(0, resourcesElementsProvider.getCacheStatistics().get("skinFile").getSize());
+    }
+    
+    @Test 
+    public void testWarmUp() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        final MockServletContext servletContext = new MockServletContext();
+        servletContext.setContextPath("/uPortal");
+        resourcesElementsProvider.setServletContext(servletContext);
+        resourcesElementsProvider.setWarmUpSkins(Arrays.asList("skin.xml", "skin-media.xml", "missing-skin.xml"));
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        assertTrue(resourcesElementsProvider.awaitWarmUp(30, TimeUnit.SECONDS));
+        assertTrue(resourcesElementsProvider.isWarmedUp());
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        final Included includedType = resourcesElementsProvider.getDefaultIncludedType();
+        request.setAttribute(ResourcesElementsProvider.INCLUDED_TYPE_ATTRIBUTE, includedType);
+        
+        final String resourcesHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+        assertTrue(resourcesHtmlFragment, resourcesHtmlFragment.contains("/uPortal/"));
+        
+        final String cacheName = Included.AGGREGATED == includedType ? "htmlResources" : "plainHtmlResources";
+        final ResourcesCacheStatistics htmlStatistics = resourcesElementsProvider.getCacheStatistics().get(cacheName);
+        assertEquals(2, htmlStatistics.getLoadCount());
+        assertEquals(1, htmlStatistics.getHitCount());
+    }
+    
+    @Test 
+    public void testEncodedHtmlFragment() throws Exception {
+        final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+        resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+        resourcesElementsProvider.setServletContext(new MockServletContext());
+        resourcesElementsProvider.afterPropertiesSet();
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        
+        final String resourcesHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+        
+        final ByteBuffer encodedFragment = resourcesElementsProvider.getEncodedResourcesHtmlFragment(request, "skin.xml", StandardCharsets.UTF_8);
+        assertTrue(encodedFragment.isReadOnly());
+        assertEquals(resourcesHtmlFragment, decode(encodedFragment, StandardCharsets.UTF_8));
+        assertSame(encodedFragment, resourcesElementsProvider.getEncodedResourcesHtmlFragment(request, "skin.xml", StandardCharsets.UTF_8));
+        
+        //Each charset and included type is cached separately
+        final ByteBuffer utf16Fragment = resourcesElementsProvider.getEncodedResourcesHtmlFragment(request, "skin.xml", StandardCharsets.UTF_16BE);
+        assertEquals(resourcesHtmlFragment, decode(utf16Fragment, StandardCharsets.UTF_16BE));
+        
+        final Included includedType = resourcesElementsProvider.getIncludedType(request);
+        final Included otherIncludedType = Included.AGGREGATED == includedType ? Included.PLAIN : Included.AGGREGATED;
+        final MockHttpServletRequest otherRequest = new MockHttpServletRequest();
+        otherRequest.setContextPath("/uPortal");
+        otherRequest.setAttribute(ResourcesElementsProvider.INCLUDED_TYPE_ATTRIBUTE, otherIncludedType);
+        final ByteBuffer otherFragment = resourcesElementsProvider.getEncodedResourcesHtmlFragment(otherRequest, "skin.xml", StandardCharsets.UTF_8);
+        assertEquals(resourcesElementsProvider.getResourcesHtmlFragment(otherRequest, "skin.xml"), decode(otherFragment, StandardCharsets.UTF_8));
+        assertNotSame(encodedFragment, otherFragment);
+        assertSame(otherFragment, resourcesElementsProvider.getEncodedResourcesHtmlFragment(otherRequest, "skin.xml", StandardCharsets.UTF_8));
+        assertSame(encodedFragment, resourcesElementsProvider.getEncodedResourcesHtmlFragment(request, "skin.xml", StandardCharsets.UTF_8));
+        
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resourcesElementsProvider.writeResourcesHtmlFragment(request, "skin.xml", out, StandardCharsets.UTF_16BE);
+        assertEquals(resourcesHtmlFragment, new String(out.toByteArray(), StandardCharsets.UTF_16BE));
+        
+        final ResourcesCacheStatistics encodedStatistics = resourcesElementsProvider.getCacheStatistics().get("encodedHtmlResources");
+        assertEquals(3, encodedStatistics.getLoadCount());
+        assertEquals(4, encodedStatistics.getHitCount());
+        
+        //Invalidated together with the HTML fragments
+        resourcesElementsProvider.invalidateSkin("skin.xml");
+        assertEquals(0, resourcesElementsProvider.getCacheStatistics().get("encodedHtmlResources").getSize());
+        final ByteBuffer reencodedFragment = resourcesElementsProvider.getEncodedResourcesHtmlFragment(request, "skin.xml", StandardCharsets.UTF_8);
+        assertNotSame(encodedFragment, reencodedFragment);
+        assertEquals(resourcesHtmlFragment, decode(reencodedFragment, StandardCharsets.UTF_8));
+    }
+    
+    @Test 
+    public void testPlainCachedUntilSkinChanges() throws Exception {
+        final File skinDirectory = Files.createTempDirectory("resources-elements-provider-test").toFile();
+        final String aggregatedThemeParameter = System.getProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER);
+        try {
+            final File skinFile = new File(skinDirectory, "skin.xml");
+            FileUtils.copyFile(new ClassPathResource("skin-media.xml").getFile(), skinFile);
+            
+            final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+            resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader() {
+                @Override
+                public Resource getResource(String location) {
+                    return new FileSystemResource(new File(skinDirectory, location));
+                }
+            });
+            final ResourcesDaoImpl resourcesDao = new ResourcesDaoImpl();
+            resourcesDao.setCheckInterval(0);
+            resourcesElementsProvider.setResourcesDao(resourcesDao);
+            resourcesElementsProvider.setServletContext(new MockServletContext());
+            resourcesElementsProvider.afterPropertiesSet();
+            resourcesElementsProvider.setDefaultIncludedType(Included.PLAIN);
+            
+            final MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setContextPath("/uPortal");
+            
+            final String resourcesHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+            assertSame(resourcesHtmlFragment, resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml"));
+            assertSame(resourcesElementsProvider.getResourcesXmlFragment(request, "skin.xml"), resourcesElementsProvider.getResourcesXmlFragment(request, "skin.xml"));
+            
+            FileUtils.write(skinFile, FileUtils.readFileToString(skinFile, "UTF-8").replace("<js>app.js</js>", "<js>app.js</js><js>changed.js</js>"), "UTF-8");
+            skinFile.setLastModified(skinFile.lastModified() + 2000);
+            
+            final String changedHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+            assertNotSame(resourcesHtmlFragment, changedHtmlFragment);
+            assertTrue(changedHtmlFragment, changedHtmlFragment.contains("/uPortal/changed.js"));
+        }
+        finally {
+            if (aggregatedThemeParameter != null) {
+                System.setProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER, aggregatedThemeParameter);
+            }
+            else {
+                System.clearProperty(ResourcesElementsProvider.AGGREGATED_THEME_PARAMETER);
+            }
+            FileUtils.deleteDirectory(skinDirectory);
+        }
+    }
+    
+    private static String decode(ByteBuffer buffer, Charset charset) {
+        //Shared buffers are read without changing their position
+        return charset.decode(buffer.duplicate()).toString();
+    }
 }
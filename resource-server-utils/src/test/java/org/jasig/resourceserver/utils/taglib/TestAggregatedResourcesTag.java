@@ -20,6 +20,7 @@ package org.jasig.resourceserver.utils.taglib;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -30,7 +31,13 @@ import javax.servlet.jsp.PageContext;
 import junit.framework.TestCase;
 
 import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderImpl;
 import org.mockito.Mockito;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockPageContext;
+import org.springframework.mock.web.MockServletContext;
 
 /**
  * TestResourceIncludeTag provides unit tests for the resource inclusion
@@ -200,4 +207,33 @@ public class TestAggregatedResourcesTag extends TestCase {
 	}
 
 
+
+	/**
+	 * Ensure that the aggregated resources are written to the response as
+	 * the cached encoded fragment.
+	 * 
+	 * @throws Exception
+	 */
+	public void testWriteEncodedFragment() throws Exception {
+		final MockServletContext mockServletContext = new MockServletContext();
+		final ResourcesElementsProviderImpl resourcesElementsProvider = new ResourcesElementsProviderImpl();
+		resourcesElementsProvider.setResourceLoader(new DefaultResourceLoader());
+		resourcesElementsProvider.setServletContext(mockServletContext);
+		resourcesElementsProvider.afterPropertiesSet();
+		
+		final MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContextPath(CURRENT_CONTEXT);
+		final MockHttpServletResponse response = new MockHttpServletResponse();
+		response.setCharacterEncoding("UTF-8");
+		
+		final AggregatedResourcesTag aggregatedResourcesTag = new AggregatedResourcesTag();
+		aggregatedResourcesTag.setPageContext(new MockPageContext(mockServletContext, request, response));
+		aggregatedResourcesTag.setPath("skin.xml");
+		aggregatedResourcesTag.doStartTag();
+		aggregatedResourcesTag.doEndTag();
+		
+		final String resourcesHtmlFragment = resourcesElementsProvider.getResourcesHtmlFragment(request, "skin.xml");
+		assertEquals(resourcesHtmlFragment, new String(response.getContentAsByteArray(), StandardCharsets.UTF_8));
+		assertEquals(1, resourcesElementsProvider.getCacheStatistics().get("encodedHtmlResources").getLoadCount());
+	}
 }
@@ -0,0 +1,45 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.resourceserver;
+
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderMXBean;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Reports OUT_OF_SERVICE until the resources elements provider finished warming up its caches, included in the
+ * readiness health group by application.properties
+ */
+public class ResourcesWarmUpHealthIndicator implements HealthIndicator {
+
+    private final ResourcesElementsProviderMXBean resourcesElementsProvider;
+
+    public ResourcesWarmUpHealthIndicator(ResourcesElementsProviderMXBean resourcesElementsProvider) {
+        this.resourcesElementsProvider = resourcesElementsProvider;
+    }
+
+    @Override
+    public Health health() {
+        if (resourcesElementsProvider.isWarmedUp()) {
+            return Health.up().build();
+        }
+        return Health.outOfService().build();
+    }
+
+}
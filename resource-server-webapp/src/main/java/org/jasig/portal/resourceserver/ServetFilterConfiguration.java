@@ -18,26 +18,36 @@
  */
 package org.jasig.portal.resourceserver;
 
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+
 import net.sf.ehcache.CacheManager;
 import org.jasig.resourceserver.aggr.ResourcesDao;
 import org.jasig.resourceserver.aggr.ResourcesDaoImpl;
 import org.jasig.resourceserver.utils.aggr.ResourcesElementsProvider;
 import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderImpl;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderMXBean;
 import org.jasig.resourceserver.utils.cache.ConfigurablePageCachingFilter;
 import org.jasig.resourceserver.utils.filter.CacheExpirationFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.jmx.export.MBeanExporter;
 
 @Configuration
 public class ServetFilterConfiguration {
 
     private static final String PAGE_CACHE_NAME = "SimplePageCachingFilter";
+    private static final String RESOURCES_ELEMENTS_PROVIDER_OBJECT_NAME = "org.jasig.resourceserver:type=ResourcesElementsProvider";
 
     @Autowired
     private CacheManager cacheManager;
 
+    @Autowired
+    private MBeanServer mbeanServer;
+
     @Bean
     public ResourcesDao resourcesDao() {
         return new ResourcesDaoImpl();
@@ -50,6 +60,19 @@ public class ServetFilterConfiguration {
         return rslt;
     }
 
+    @Bean
+    public MBeanExporter resourcesElementsProviderExporter() {
+        final MBeanExporter rslt = new MBeanExporter();
+        rslt.setServer(mbeanServer);
+        rslt.setBeans(Collections.<String, Object>singletonMap(RESOURCES_ELEMENTS_PROVIDER_OBJECT_NAME, resourcesElementsProvider()));
+        return rslt;
+    }
+
+    @Bean
+    public ResourcesWarmUpHealthIndicator resourcesWarmUpHealthIndicator() {
+        return new ResourcesWarmUpHealthIndicator((ResourcesElementsProviderMXBean) resourcesElementsProvider());
+    }
+
     @Bean
     public FilterRegistrationBean pageCachingFilter() {
         final ConfigurablePageCachingFilter filter = new ConfigurablePageCachingFilter(cacheManager, PAGE_CACHE_NAME);
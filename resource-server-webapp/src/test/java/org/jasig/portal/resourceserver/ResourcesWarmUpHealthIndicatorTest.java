@@ -0,0 +1,65 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.resourceserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.jasig.resourceserver.utils.aggr.ResourcesCacheStatistics;
+import org.jasig.resourceserver.utils.aggr.ResourcesElementsProviderMXBean;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Status;
+
+public class ResourcesWarmUpHealthIndicatorTest {
+
+    @Test
+    public void testOutOfServiceUntilWarmedUp() {
+        final WarmUpProvider provider = new WarmUpProvider();
+        final ResourcesWarmUpHealthIndicator healthIndicator = new ResourcesWarmUpHealthIndicator(provider);
+        assertEquals(Status.OUT_OF_SERVICE, healthIndicator.health().getStatus());
+
+        provider.warmedUp = true;
+        assertEquals(Status.UP, healthIndicator.health().getStatus());
+    }
+
+    private static final class WarmUpProvider implements ResourcesElementsProviderMXBean {
+        private volatile boolean warmedUp;
+
+        @Override
+        public Map<String, ResourcesCacheStatistics> getCacheStatistics() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public boolean isWarmedUp() {
+            return warmedUp;
+        }
+
+        @Override
+        public void invalidateSkin(String skinXml) {
+        }
+
+        @Override
+        public void invalidateCaches() {
+        }
+    }
+
+}